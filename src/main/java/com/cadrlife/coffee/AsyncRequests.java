@@ -0,0 +1,92 @@
+package com.cadrlife.coffee;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/*
+ * Servlet 3 asynchronous requests, reached through reflection since this library builds against Servlet 2.5.
+ * Unsupported in a Servlet 2.5 container, or for a request whose filter chain is not marked async-supported.
+ * Methods missing from the Servlet API classes this library sees, as when those are older than the
+ * container's, are looked up on the request or AsyncContext object itself.
+ */
+class AsyncRequests {
+	private static final Class<?> ASYNC_CONTEXT = asyncContextClass();
+
+	static boolean isSupported(ServletRequest request) {
+		Method isAsyncSupported = method(ServletRequest.class, request, "isAsyncSupported");
+		if (isAsyncSupported == null || startAsync(request) == null) {
+			return false;
+		}
+		try {
+			return Boolean.TRUE.equals(isAsyncSupported.invoke(request));
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/*
+	 * Puts the request into asynchronous mode, returning its AsyncContext. The response is only committed
+	 * once complete is called, after the filter has returned.
+	 * The container's timeout is turned off: the compile is already bounded by the compile budget and the
+	 * queue limit, and a container timing the request out under it would leave the compile to write to a
+	 * response that has since been recycled for another request.
+	 */
+	static Object start(ServletRequest request, ServletResponse response) {
+		Object asyncContext = invoke(startAsync(request), request, request, response);
+		invoke(method(ASYNC_CONTEXT, asyncContext, "setTimeout", long.class), asyncContext, 0L);
+		return asyncContext;
+	}
+
+	static void complete(Object asyncContext) {
+		invoke(method(ASYNC_CONTEXT, asyncContext, "complete"), asyncContext);
+	}
+
+	private static Method startAsync(ServletRequest request) {
+		return method(ServletRequest.class, request, "startAsync", ServletRequest.class, ServletResponse.class);
+	}
+
+	private static Object invoke(Method method, Object target, Object... arguments) {
+		if (method == null) {
+			throw new IllegalStateException("Asynchronous requests are not supported by " + target.getClass().getName());
+		}
+		try {
+			return method.invoke(target, arguments);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private static Class<?> asyncContextClass() {
+		try {
+			return Class.forName("javax.servlet.AsyncContext", false, ServletRequest.class.getClassLoader());
+		} catch (ClassNotFoundException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * The method as declared by the Servlet API type if it has it, or else by the target's class, or null.
+	 */
+	private static Method method(Class<?> apiType, Object target, String name, Class<?>... parameterTypes) {
+		if (apiType != null) {
+			try {
+				return apiType.getMethod(name, parameterTypes);
+			} catch (NoSuchMethodException e) {
+				// Look on the target instead.
+			}
+		}
+		try {
+			return target.getClass().getMethod(name, parameterTypes);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -1,10 +1,19 @@
 package com.cadrlife.coffee;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -14,23 +23,30 @@ import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import com.cadrlife.coffee.compile.CachingCoffeeCompiler;
+import com.cadrlife.coffee.compile.CompiledOutput;
+import com.cadrlife.coffee.compile.CompilerPool;
+import com.cadrlife.coffee.compile.CompilerWarmup;
+import com.cadrlife.coffee.compile.SharedDirectoryAssetStore;
+import com.cadrlife.coffee.compile.ThreadSafeCoffeeScriptCompiler;
+import com.cadrlife.coffee.compile.VersionedSupplier;
 import com.cadrlife.coffee.concat.CoffeescriptConcatenate;
 import com.cadrlife.coffee.internal.org.springframework.util.AntPathMatcher;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
-import com.google.common.base.Supplier;
 import com.google.common.collect.Iterables;
-import com.google.common.io.CharStreams;
-import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 /**
  * Filter to compile coffeescript on the fly, with concatenation support. Does
  * do caching yet.
  * 
- * This filter takes 3 parameters:
+ * This filter takes the following parameters:
  * 
  * coffeeFiles. Required. Ant-style path to all coffee files
  * ex. /WEB-INF/js/*.coffee
@@ -42,8 +58,66 @@ import com.google.common.io.Closeables;
  * concatenateName. Optional. Path that maps to the concatenated source code.
  * ex. /js/app.js
  * 
+ * sharedCompilerScope. Optional, defaults to false. When true, the CoffeeScript library is loaded once
+ * and shared by all request threads instead of once per thread. Uses far less memory, but compiles run one at a time.
+ * 
+ * compiledCacheMemoryMegabytes. Optional. Heap the in-memory cache of compiled JavaScript may use, weighing
+ * files by size. Without it the cache holds up to 100 files whatever their size.
+ * 
+ * compiledCacheRefreshAhead. Optional, defaults to false. When true, requests for expired or changed files get the
+ * previously compiled JavaScript while the file is recompiled in the background.
+ * 
+ * compileFailureCacheSeconds. Optional, defaults to 30. How long a file that failed to compile keeps getting
+ * the same error without being recompiled. 0 to recompile on every request.
+ * 
+ * watchSourcesMillis. Optional. When set, files that have been requested are checked for changes this often
+ * and recompiled in the background, so the first request after an edit does not wait for the compiler.
+ * 
+ * compiledCacheOffHeap. Optional, defaults to false. When true, compiled JavaScript is cached as UTF-8 outside
+ * the Java heap, keeping large bundles out of garbage collection. Evicted output only frees that memory once
+ * garbage collected, so off-heap use can briefly exceed the cache's size limit.
+ * 
+ * compiledCacheGzip. Optional, defaults to false. Keeps a gzipped copy of each compiled file, made once when it is
+ * compiled, and sends it with Content-Encoding: gzip to clients that accept it.
+ * 
+ * compiledCacheDirectory. Optional. Directory to keep compiled JavaScript in across restarts.
+ * maxCompiledCacheMegabytes. Optional, defaults to 100. Size limit of that directory.
+ * 
+ * sharedCompiledDirectory. Optional. Directory on a volume shared by several servers, used instead of
+ * compiledCacheDirectory. Each file is compiled by one server and served from there by all of them.
+ * 
+ * compilerWarmup. Optional, defaults to true. Creates and exercises all compilers in the background at startup.
+ * Progress is published as the CompilerWarmup in the servlet context attribute CoffeeFilter.WARMUP_ATTRIBUTE,
+ * so a readiness check can wait for isDone().
+ * 
+ * compilerWorkerProcesses. Optional, defaults to 0. When set, compiles run in this many separate JVMs
+ * so the compiler's garbage stays out of the application heap.
+ * 
+ * asyncCompiles. Optional, defaults to false. In a Servlet 3 container, with the filter marked
+ * <async-supported>true</async-supported>, a request for a file that is not cached is put in asynchronous mode
+ * and answered once a background thread has compiled it, so compiles do not hold on to request threads.
+ * Requests for cached files are answered right away as usual.
+ * asyncCompileThreads. Optional, defaults to the number of processors. Threads compiling for those requests.
+ * maxQueuedCompiles. Optional, defaults to 100. Compiles that may wait for those threads. Requests beyond that
+ * get 503 Service Unavailable.
+ * 
+ * Responses carry an ETag of the compiled JavaScript and the Last-Modified time of its source. Conditional
+ * requests for unchanged files get 304 Not Modified, without compiling when the file is already cached.
+ * 
+ * Every script is also served under a fingerprinted name with part of the hash of its compiled JavaScript,
+ * for example /js/app-3f9a1c0b2d4e.js for /js/app.js, with headers letting browsers and CDNs cache it for a year.
+ * The servlet context attribute CoffeeFilter.FINGERPRINTED_URLS_ATTRIBUTE maps each plain path to the current
+ * fingerprinted URL, including the context path, so a JSP can link to it:
+ * <script src="${applicationScope['com.cadrlife.coffee.CoffeeFilter.fingerprintedUrls']['/js/app.js']}"></script>
+ * 
  */
 public class CoffeeFilter implements Filter {
+	public static final String COMPILER_POOL_ATTRIBUTE = CompilerPool.class.getName();
+	public static final String WARMUP_ATTRIBUTE = CompilerWarmup.class.getName();
+	public static final String FINGERPRINTED_URLS_ATTRIBUTE = CoffeeFilter.class.getName() + ".fingerprintedUrls";
+	private static final int FINGERPRINT_LENGTH = 12;
+	private static final Pattern FINGERPRINTED_PATH = Pattern.compile("(.*)-([0-9a-f]{" + FINGERPRINT_LENGTH + "})\\.js");
+	private static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
 	private String concatenateRoot = "";
 	private String concatenateName = "";
 	private String coffeeFiles = "";
@@ -51,6 +125,7 @@ public class CoffeeFilter implements Filter {
 	private AntPathMatcher antPathMatcher = new AntPathMatcher();
 
 	private CachingCoffeeCompiler compiler;
+	private boolean asyncCompiles;
 
 	private FilterConfig filterConfig;
 	private ServletContext servletContext;
@@ -58,7 +133,13 @@ public class CoffeeFilter implements Filter {
 	public void init(FilterConfig filterConfig) throws ServletException {
 		this.filterConfig = filterConfig;
 		this.servletContext = this.filterConfig.getServletContext();
-		compiler = new CachingCoffeeCompiler();
+		compiler = new CachingCoffeeCompiler(cacheOptions(filterConfig), compilerOptions(filterConfig));
+		asyncCompiles = Boolean.parseBoolean(filterConfig.getInitParameter("asyncCompiles"));
+		servletContext.setAttribute(COMPILER_POOL_ATTRIBUTE, compiler.getCompilerPool());
+		if (!"false".equalsIgnoreCase(filterConfig.getInitParameter("compilerWarmup"))) {
+			servletContext.setAttribute(WARMUP_ATTRIBUTE, compiler.startWarmup());
+		}
+		servletContext.setAttribute(FINGERPRINTED_URLS_ATTRIBUTE, new FingerprintedUrls());
 		coffeeFiles = filterConfig.getInitParameter("coffeeFiles");
 		concatenateRoot = filterConfig.getInitParameter("concatenateRoot");
 		concatenateName = filterConfig.getInitParameter("concatenateName");
@@ -67,8 +148,79 @@ public class CoffeeFilter implements Filter {
 				.isNullOrEmpty(concatenateRoot));
 	}
 	
-	public void destroy() {
+	private CachingCoffeeCompiler.CacheOptions cacheOptions(FilterConfig filterConfig) {
+		CachingCoffeeCompiler.CacheOptions cacheOptions = new CachingCoffeeCompiler.CacheOptions();
+		String cacheMemoryMegabytes = filterConfig.getInitParameter("compiledCacheMemoryMegabytes");
+		if (!Strings.isNullOrEmpty(cacheMemoryMegabytes)) {
+			cacheOptions.maxWeightBytes = Long.parseLong(cacheMemoryMegabytes) * 1024 * 1024;
+		}
+		cacheOptions.refreshAhead = Boolean.parseBoolean(filterConfig.getInitParameter("compiledCacheRefreshAhead"));
+		String failureCacheSeconds = filterConfig.getInitParameter("compileFailureCacheSeconds");
+		if (!Strings.isNullOrEmpty(failureCacheSeconds)) {
+			cacheOptions.failureCacheTime = Long.parseLong(failureCacheSeconds);
+			cacheOptions.failureCacheTimeUnit = TimeUnit.SECONDS;
+		}
+		String watchMillis = filterConfig.getInitParameter("watchSourcesMillis");
+		if (!Strings.isNullOrEmpty(watchMillis)) {
+			cacheOptions.watchInterval = Long.parseLong(watchMillis);
+			cacheOptions.watchIntervalUnit = TimeUnit.MILLISECONDS;
+		}
+		cacheOptions.offHeap = Boolean.parseBoolean(filterConfig.getInitParameter("compiledCacheOffHeap"));
+		cacheOptions.gzip = Boolean.parseBoolean(filterConfig.getInitParameter("compiledCacheGzip"));
+		String cacheDirectory = filterConfig.getInitParameter("compiledCacheDirectory");
+		if (!Strings.isNullOrEmpty(cacheDirectory)) {
+			cacheOptions.diskCacheDirectory = new File(cacheDirectory);
+		}
+		String maxCacheMegabytes = filterConfig.getInitParameter("maxCompiledCacheMegabytes");
+		if (!Strings.isNullOrEmpty(maxCacheMegabytes)) {
+			cacheOptions.maxDiskCacheBytes = Long.parseLong(maxCacheMegabytes) * 1024 * 1024;
+		}
+		String asyncThreads = filterConfig.getInitParameter("asyncCompileThreads");
+		if (!Strings.isNullOrEmpty(asyncThreads)) {
+			cacheOptions.asyncThreads = Integer.parseInt(asyncThreads);
+		}
+		String maxQueuedCompiles = filterConfig.getInitParameter("maxQueuedCompiles");
+		cacheOptions.maxQueuedAsyncCompiles = Strings.isNullOrEmpty(maxQueuedCompiles) ? 100 : Integer.parseInt(maxQueuedCompiles);
+		String sharedDirectory = filterConfig.getInitParameter("sharedCompiledDirectory");
+		if (!Strings.isNullOrEmpty(sharedDirectory)) {
+			cacheOptions.assetStore = new SharedDirectoryAssetStore(new File(sharedDirectory));
+		}
+		return cacheOptions;
+	}
 
+	private ThreadSafeCoffeeScriptCompiler.CompilerOptions compilerOptions(FilterConfig filterConfig) {
+		ThreadSafeCoffeeScriptCompiler.CompilerOptions compilerOptions = new ThreadSafeCoffeeScriptCompiler.CompilerOptions();
+		compilerOptions.sharedScope = Boolean.parseBoolean(filterConfig.getInitParameter("sharedCompilerScope"));
+		compilerOptions.dedicatedThreads = Boolean.parseBoolean(filterConfig.getInitParameter("dedicatedCompilerThreads"));
+		String snapshotDirectory = filterConfig.getInitParameter("compilerSnapshotDirectory");
+		if (!Strings.isNullOrEmpty(snapshotDirectory)) {
+			compilerOptions.scopeSnapshotDirectory = new File(snapshotDirectory);
+		}
+		String maxCompilers = filterConfig.getInitParameter("maxCompilers");
+		if (!Strings.isNullOrEmpty(maxCompilers)) {
+			compilerOptions.maxCompilers = Integer.parseInt(maxCompilers);
+		}
+		String maxCompileMillis = filterConfig.getInitParameter("maxCompileMillis");
+		if (!Strings.isNullOrEmpty(maxCompileMillis)) {
+			compilerOptions.maxCompileTime = Long.parseLong(maxCompileMillis);
+			compilerOptions.maxCompileTimeUnit = TimeUnit.MILLISECONDS;
+		}
+		String maxSourceLength = filterConfig.getInitParameter("maxSourceLength");
+		if (!Strings.isNullOrEmpty(maxSourceLength)) {
+			compilerOptions.maxSourceLength = Integer.parseInt(maxSourceLength);
+		}
+		String workerProcesses = filterConfig.getInitParameter("compilerWorkerProcesses");
+		if (!Strings.isNullOrEmpty(workerProcesses)) {
+			compilerOptions.workerProcesses = Integer.parseInt(workerProcesses);
+		}
+		return compilerOptions;
+	}
+	
+	public void destroy() {
+		servletContext.removeAttribute(COMPILER_POOL_ATTRIBUTE);
+		servletContext.removeAttribute(WARMUP_ATTRIBUTE);
+		servletContext.removeAttribute(FINGERPRINTED_URLS_ATTRIBUTE);
+		compiler.shutdown();
 	}
 
 
@@ -76,7 +228,6 @@ public class CoffeeFilter implements Filter {
 			FilterChain chain) throws IOException, ServletException {
 		HttpServletRequest httpReq = (HttpServletRequest) request;
 		String requestURI = httpReq.getRequestURI();
-		ServletContext servletContext = filterConfig.getServletContext();
 		String contextPath = servletContext.getContextPath();
 		if (!isEnabled() || !requestURI.endsWith(".js")) {
 			chain.doFilter(request, response);
@@ -85,41 +236,212 @@ public class CoffeeFilter implements Filter {
 		if (requestURI.startsWith(contextPath)) {
 			requestURI = requestURI.substring(contextPath.length());
 		}
-		String coffeeRequestURI = requestURI.substring(0, requestURI.length() - 3) + ".coffee";
-		if (concatenationEnabled && requestURI.equals(concatenateName) && concatRootExists(servletContext)) {
-			response.setContentType("text/javascript");
-			Supplier<String> coffeeSupplier = concatenateResourcesSupplier();
-			String compiledCoffee = compiler.compile(requestURI, coffeeSupplier);
-			response.getOutputStream().print(compiledCoffee);
-			return;
+		VersionedSupplier source = source(requestURI);
+		String fingerprint = null;
+		if (source == null) {
+			Matcher fingerprinted = FINGERPRINTED_PATH.matcher(requestURI);
+			if (fingerprinted.matches()) {
+				requestURI = fingerprinted.group(1) + ".js";
+				fingerprint = fingerprinted.group(2);
+				source = source(requestURI);
+			}
 		}
-		String resourcePath = "/WEB-INF" + coffeeRequestURI;
-		if (!antPathMatcher.match(coffeeFiles, resourcePath)) {
+		if (source == null) {
 			chain.doFilter(request, response);
 			return;
 		}
-		
+		serve(httpReq, (HttpServletResponse) response, requestURI, source, fingerprint);
+	}
+
+	/*
+	 * Returns the source a context-relative .js path is compiled from, or null if it is not one of ours.
+	 */
+	private VersionedSupplier source(String path) throws MalformedURLException {
+		if (concatenationEnabled && path.equals(concatenateName) && concatRootExists(servletContext)) {
+			return concatenateResourcesSupplier();
+		}
+		String resourcePath = "/WEB-INF" + path.substring(0, path.length() - 3) + ".coffee";
+		if (!antPathMatcher.match(coffeeFiles, resourcePath)) {
+			return null;
+		}
 		URL resourceUrl = servletContext.getResource(resourcePath);
-		if (resourceUrl == null) {
-			chain.doFilter(request, response);
+		return resourceUrl != null ? resourceSupplier(VirtualFile.fromURL(resourcePath, resourceUrl)) : null;
+	}
+
+	/*
+	 * Sends the compiled source with its validators, or 304 Not Modified when the client's copy is current.
+	 * Validation uses cached output that is known to be current, so it never waits for a compile. Without such
+	 * output the source is compiled first: a modification time alone can miss changes, such as a file dropped
+	 * from the concatenated bundle or replaced by an older copy.
+	 * With asyncCompiles, a request that has to wait for a compile is answered asynchronously where possible.
+	 */
+	private void serve(HttpServletRequest request, HttpServletResponse response, String requestURI, VersionedSupplier source,
+			String fingerprint) throws IOException {
+		CompiledOutput output = compiler.currentOutput(requestURI, source);
+		if (output != null) {
+			respond(request, response, output, fingerprint, compiler.lastModified(requestURI));
 			return;
 		}
-		
-		response.setContentType("text/javascript");
-		response.getOutputStream().print(compiler.compile(requestURI, urlAsStringSupplier(resourceUrl)));
-		
+		if (asyncCompiles && AsyncRequests.isSupported(request)) {
+			serveWhenCompiled(request, response, requestURI, source, fingerprint);
+			return;
+		}
+		output = compiler.compileOutput(requestURI, source);
+		respond(request, response, output, fingerprint, compiler.lastModified(requestURI));
 	}
 
-	private Supplier<String> urlAsStringSupplier(final URL resourceUrl) {
-		return new Supplier<String>() {
+	/*
+	 * Puts the request in asynchronous mode and answers it from the thread that compiles it.
+	 * A compile that fails or cannot be queued is answered with an error status, as the container would
+	 * for an exception thrown by a synchronous request.
+	 */
+	private void serveWhenCompiled(final HttpServletRequest request, final HttpServletResponse response, final String requestURI,
+			final VersionedSupplier source, final String fingerprint) {
+		final Object asyncContext = AsyncRequests.start(request, response);
+		final ListenableFuture<CompiledOutput> compiled = compiler.compileOutputAsync(requestURI, source);
+		compiled.addListener(new Runnable() {
+			public void run() {
+				try {
+					respond(request, response, compiled.get(), fingerprint, compiler.lastModified(requestURI));
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof RejectedExecutionException) {
+						response.setHeader("Retry-After", "1");
+						sendError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many scripts waiting to be compiled");
+					} else {
+						e.getCause().printStackTrace();
+						sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getCause().getMessage());
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+					sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+				} finally {
+					AsyncRequests.complete(asyncContext);
+				}
+			}
+		}, MoreExecutors.sameThreadExecutor());
+	}
+
+	private static void sendError(HttpServletResponse response, int status, String message) {
+		try {
+			response.sendError(status, message);
+		} catch (IOException e) {
+			// The client is gone.
+		} catch (IllegalStateException e) {
+			// Already committed.
+		}
+	}
+
+	/*
+	 * A request under a fingerprinted name is cached for good if the fingerprint is current. An outdated
+	 * fingerprint, from a page rendered before the file changed, gets the current output without that.
+	 */
+	private void respond(HttpServletRequest request, HttpServletResponse response, CompiledOutput output, String fingerprint,
+			long lastModified) throws IOException {
+		boolean gzip = output.hasGzip() && acceptsGzip(request);
+		// Each encoding is a representation of its own, with an ETag of its own.
+		String eTag = '"' + output.getContentHash() + (gzip ? "-gzip" : "") + '"';
+		response.setHeader("ETag", eTag);
+		if (output.hasGzip()) {
+			response.setHeader("Vary", "Accept-Encoding");
+		}
+		if (fingerprint != null && output.getContentHash().startsWith(fingerprint)) {
+			response.setHeader("Cache-Control", IMMUTABLE_CACHE_CONTROL);
+		}
+		if (lastModified > 0) {
+			response.setDateHeader("Last-Modified", lastModified);
+		}
+		if (isNotModified(request, eTag, lastModified)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		response.setContentType("text/javascript;charset=UTF-8");
+		if (gzip) {
+			response.setHeader("Content-Encoding", "gzip");
+			response.setContentLength(output.getGzipLength());
+			output.writeGzipTo(response.getOutputStream());
+		} else {
+			response.setContentLength(output.getLength());
+			output.writeTo(response.getOutputStream());
+		}
+	}
+
+	/*
+	 * Whether Accept-Encoding lists gzip, or x-gzip, without q=0.
+	 */
+	static boolean acceptsGzip(HttpServletRequest request) {
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		if (acceptEncoding == null) {
+			return false;
+		}
+		for (String coding : Splitter.on(',').trimResults().omitEmptyStrings().split(acceptEncoding)) {
+			Iterator<String> parameters = Splitter.on(';').trimResults().split(coding).iterator();
+			String name = parameters.next();
+			if (!name.equalsIgnoreCase("gzip") && !name.equalsIgnoreCase("x-gzip")) {
+				continue;
+			}
+			while (parameters.hasNext()) {
+				String parameter = parameters.next().replace(" ", "");
+				if (parameter.startsWith("q=") && parameter.substring(2).matches("0(\\.0*)?")) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/*
+	 * If-None-Match takes precedence over If-Modified-Since. A null ETag matches nothing.
+	 */
+	static boolean isNotModified(HttpServletRequest request, String eTag, long lastModified) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			for (String tag : Splitter.on(',').trimResults().split(ifNoneMatch)) {
+				if (eTag != null && (tag.equals(eTag) || tag.equals("W/" + eTag) || tag.equals("*"))) {
+					return true;
+				}
+			}
+			return false;
+		}
+		if (lastModified <= 0) {
+			return false;
+		}
+		long ifModifiedSince;
+		try {
+			ifModifiedSince = request.getDateHeader("If-Modified-Since");
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+		// HTTP dates have whole seconds.
+		return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+	}
+
+	/*
+	 * Source of a compiled file, which also knows when it was last modified, or 0 if that is not known.
+	 */
+	private VersionedSupplier resourceSupplier(final VirtualFile resource) {
+		return new VersionedSupplier() {
 			public String get() {
 				try {
-					InputStream in = resourceUrl.openStream();
-					Closeables.closeQuietly(in);
-					String result = CharStreams.toString(new InputStreamReader(in));
-					return result;
+					return resource.readToString();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+
+			public String getVersion() {
+				try {
+					return resource.getVersion();
+				} catch (IOException e) {
+					return null;
+				}
+			}
+
+			public long lastModified() {
+				try {
+					return resource.lastModified();
 				} catch (IOException e) {
-					throw new RuntimeException();
+					return 0;
 				}
 			}
 		};
@@ -153,8 +475,46 @@ public class CoffeeFilter implements Filter {
 		return resolver.getResourcePaths(coffeeFiles);
 	}
 
-	private Supplier<String> concatenateResourcesSupplier() throws IOException {
-		return new Supplier<String> (){
+	/*
+	 * Returns the path with the fingerprint of its current compiled output, compiling it if need be,
+	 * or the path itself if it is not one of ours or does not compile.
+	 */
+	String fingerprintedPath(String path) {
+		try {
+			VersionedSupplier source = path.endsWith(".js") ? source(path) : null;
+			if (source == null) {
+				return path;
+			}
+			CompiledOutput output = compiler.currentOutput(path, source);
+			if (output == null) {
+				output = compiler.compileOutput(path, source);
+			}
+			return path.substring(0, path.length() - 3) + "-" + output.getContentHash().substring(0, FINGERPRINT_LENGTH) + ".js";
+		} catch (IOException e) {
+			return path;
+		} catch (RuntimeException e) {
+			return path;
+		}
+	}
+
+	/*
+	 * Read-only view for JSPs, from a context-relative path to its current fingerprinted URL. Only get is
+	 * supported, since the paths are not known in advance.
+	 */
+	private class FingerprintedUrls extends AbstractMap<String, String> {
+		@Override
+		public String get(Object path) {
+			return path instanceof String ? servletContext.getContextPath() + fingerprintedPath((String) path) : null;
+		}
+
+		@Override
+		public Set<Map.Entry<String, String>> entrySet() {
+			return Collections.emptySet();
+		}
+	}
+
+	private VersionedSupplier concatenateResourcesSupplier() {
+		return new VersionedSupplier() {
 			public String get() {
 				try {
 					Iterable<VirtualFile> rootFiles = resourcesToFiles(rootCoffeePaths());
@@ -164,6 +524,34 @@ public class CoffeeFilter implements Filter {
 					throw new RuntimeException(e);
 				}
 			}
+
+			/*
+			 * Changes when any file that may be concatenated is added, removed or modified.
+			 */
+			public String getVersion() {
+				try {
+					StringBuilder version = new StringBuilder();
+					for (VirtualFile file : Iterables.concat(resourcesToFiles(rootCoffeePaths()), resourcesToFiles(allCoffeePaths()))) {
+						String fileVersion = file.getVersion();
+						if (fileVersion == null) {
+							return null;
+						}
+						version.append(file.getPath()).append('=').append(fileVersion).append(';');
+					}
+					return version.toString();
+				} catch (IOException e) {
+					return null;
+				}
+			}
+
+			/*
+			 * Not known: the newest modification among the files does not change when a file is dropped from
+			 * the bundle or replaced by an older copy, so the bundle is validated by its ETag alone.
+			 */
+			public long lastModified() {
+				return 0;
+			}
+
 		};
 		
 	}
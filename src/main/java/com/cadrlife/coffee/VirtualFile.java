@@ -5,10 +5,14 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.JarURLConnection;
 import java.net.URL;
+import java.net.URLConnection;
 import java.nio.charset.Charset;
+import java.util.jar.JarEntry;
 
 import com.google.common.io.CharStreams;
+import com.google.common.io.Closeables;
 
 public abstract class VirtualFile {
 	
@@ -23,9 +27,40 @@ public abstract class VirtualFile {
 	}
 	
 	public abstract InputStream openInputStream() throws IOException;
+
+	/*
+	 * Returns the last modified time in milliseconds, or 0 if unknown, as it is unless overridden.
+	 */
+	public long lastModified() throws IOException {
+		return 0;
+	}
+
+	/*
+	 * Returns the length in bytes, or -1 if unknown, as it is unless overridden.
+	 */
+	public long length() throws IOException {
+		return -1;
+	}
+
+	/*
+	 * Returns a token that changes when the file does, made of its last modified time and length,
+	 * or null if neither is known.
+	 */
+	public String getVersion() throws IOException {
+		return version(lastModified(), length());
+	}
+
+	private static String version(long lastModified, long length) {
+		return lastModified == 0 && length < 0 ? null : lastModified + ":" + length;
+	}
 	
 	public String readToString(Charset charset) throws IOException {
-		return CharStreams.toString(new InputStreamReader(this.openInputStream(),charset));
+		InputStream in = this.openInputStream();
+		try {
+			return CharStreams.toString(new InputStreamReader(in, charset));
+		} finally {
+			Closeables.closeQuietly(in);
+		}
 	}
 	
 	public String readToString() throws IOException {
@@ -58,6 +93,65 @@ public abstract class VirtualFile {
 		public InputStream openInputStream() throws IOException {
 			return url.openStream();
 		}
+
+		@Override
+		public long lastModified() throws IOException {
+			File file = asFile();
+			return file != null ? file.lastModified() : connectionVersion()[0];
+		}
+
+		@Override
+		public long length() throws IOException {
+			File file = asFile();
+			return file != null ? (file.exists() ? file.length() : -1) : connectionVersion()[1];
+		}
+
+		@Override
+		public String getVersion() throws IOException {
+			if (asFile() != null) {
+				return super.getVersion();
+			}
+			long[] version = connectionVersion();
+			return version(version[0], version[1]);
+		}
+
+		/*
+		 * Plain files are checked directly, since asking a file URL's connection for its metadata opens the file.
+		 */
+		private File asFile() {
+			if (!"file".equals(url.getProtocol())) {
+				return null;
+			}
+			try {
+				return new File(url.toURI());
+			} catch (Exception e) {
+				return null;
+			}
+		}
+
+		/*
+		 * Last modified time and length from the URL's connection, which for jar entries and most
+		 * servlet container resources comes from the archive or directory listing rather than the content.
+		 */
+		private long[] connectionVersion() throws IOException {
+			URLConnection connection = url.openConnection();
+			connection.setUseCaches(false);
+			if (connection instanceof JarURLConnection) {
+				// The entry's metadata is in the archive's directory, so there is no need to inflate the entry.
+				JarURLConnection jarConnection = (JarURLConnection) connection;
+				try {
+					JarEntry entry = jarConnection.getJarEntry();
+					return entry != null ? new long[] {entry.getTime(), entry.getSize()} : new long[] {0, -1};
+				} finally {
+					// Without caching, the connection opened the archive for this call alone.
+					jarConnection.getJarFile().close();
+				}
+			}
+			long[] version = {connection.getLastModified(), connection.getContentLength()};
+			// Some connections open the resource just to answer, make sure it is closed again.
+			Closeables.closeQuietly(connection.getInputStream());
+			return version;
+		}
 	}
 	
 	private static class FileVirtualFile extends VirtualFile{
@@ -72,6 +166,16 @@ public abstract class VirtualFile {
 		public InputStream openInputStream() throws IOException {
 			return new FileInputStream(file);
 		}
+
+		@Override
+		public long lastModified() {
+			return file.lastModified();
+		}
+
+		@Override
+		public long length() {
+			return file.exists() ? file.length() : -1;
+		}
 	}
 
 }
@@ -1,27 +1,192 @@
 package com.cadrlife.coffee.compile;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import com.cadrlife.coffee.jcoffeescript.JCoffeeScriptBudgetExceededException;
 import com.cadrlife.coffee.jcoffeescript.JCoffeeScriptCompileException;
+import com.cadrlife.coffee.jcoffeescript.JCoffeeScriptCompiler;
+import com.google.common.base.Function;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 /*
- * Caches by both source code and filename. Will recompile when the source code has changed.
- * Stores up to 100 files by default. This can be changed by passing a custom CacheBuilder to the constructor.
+ * Caches compiled output by a hash of the source code and compiler options, so an edited file is recompiled
+ * on its next request and identical files under different paths are compiled once.
+ * A filename index remembers which source each path last had, so when a file changes the output of its
+ * old source is dropped instead of crowding unchanged files out of the cache.
+ * Stores up to 100 compiled sources by default, or as many as fit CacheOptions.maxWeightBytes.
+ * With CacheOptions.diskCacheDirectory, compiled output is also kept in a DiskCompilationCache and
+ * read back from there before anything is recompiled, including after a restart. CacheOptions.assetStore
+ * plugs in another CompiledAssetStore instead, such as a SharedDirectoryAssetStore that several nodes share.
+ * Each entry expires after the expiration time, give or take CacheOptions.expirationJitter, so entries
+ * compiled together do not all expire together. With CacheOptions.refreshAhead a request never waits for a
+ * file that is already cached: expired entries, and the previous output of a changed file, keep being served
+ * while a background thread recompiles them.
+ * With CacheOptions.watchInterval, sources that have been requested are watched and recompiled as soon
+ * as they change.
+ * With CacheOptions.offHeap the output is kept outside the Java heap, see compileOutput.
+ * compileAsync compiles without blocking the caller, on CacheOptions.asyncExecutor.
+ * Compilation failures are cached by content hash for CacheOptions.failureCacheTime, so requests for a broken
+ * file get the same CompilationException back without running the compiler.
  */
 public class CachingCoffeeCompiler {
 	public static class CacheOptions {
 		public int maxSize = 100;
 		public int expirationTime = 10;
 		public TimeUnit expirationTimeUnit = TimeUnit.MINUTES;
+		/*
+		 * Directory to also keep compiled output in, so it survives restarts. Null to keep it in memory only.
+		 */
+		public File diskCacheDirectory = null;
+		public long maxDiskCacheBytes = 100L * 1024 * 1024;
+		/*
+		 * Store to keep compiled output in instead of diskCacheDirectory. Null to use diskCacheDirectory.
+		 */
+		public CompiledAssetStore assetStore = null;
+		/*
+		 * Heap the compiled output may take, weighing each entry by its size. When set, maxSize no longer applies.
+		 * Zero to limit by maxSize only.
+		 */
+		public long maxWeightBytes = 0;
+		/*
+		 * Fraction by which each entry's expiration time is randomly shortened or lengthened.
+		 */
+		public double expirationJitter = 0.1;
+		/*
+		 * Serve expired and superseded output while recompiling in the background, instead of blocking the request.
+		 * Entries then only leave the cache through maxSize or maxWeightBytes.
+		 */
+		public boolean refreshAhead = false;
+		/*
+		 * How long a compilation failure is remembered, so a broken file is not recompiled on every request.
+		 * Zero to retry every time.
+		 */
+		public long failureCacheTime = 30;
+		public TimeUnit failureCacheTimeUnit = TimeUnit.SECONDS;
+		/*
+		 * For sources given as a VersionedSupplier, how long a path's version is trusted before it is checked again.
+		 */
+		public long versionCheckInterval = 1;
+		public TimeUnit versionCheckIntervalUnit = TimeUnit.SECONDS;
+		/*
+		 * How often to look for changes to VersionedSupplier sources and recompile them in the background,
+		 * see SourceWatcher. Zero to only notice changes when a file is requested.
+		 */
+		public long watchInterval = 0;
+		public TimeUnit watchIntervalUnit = TimeUnit.MILLISECONDS;
+		/*
+		 * Keep compiled output as UTF-8 in direct buffers outside the Java heap, see CompiledOutput.
+		 * maxWeightBytes then bounds the output the cache holds, not the memory in use: the buffers of evicted
+		 * output are only freed once garbage collected, so allow headroom in -XX:MaxDirectMemorySize.
+		 * The output is then decoded into a new String on every compile, compileAll or getJavaScript call.
+		 */
+		public boolean offHeap = false;
+		/*
+		 * Also keep a gzipped copy of each output, compressed once when it is compiled, see CompiledOutput.writeGzipTo.
+		 */
+		public boolean gzip = false;
+		/*
+		 * Executor compileAsync compiles on. Null for a pool of asyncThreads daemon threads.
+		 */
+		public Executor asyncExecutor = null;
+		public int asyncThreads = Runtime.getRuntime().availableProcessors();
+		/*
+		 * Compiles that may wait for one of the asyncThreads. Beyond that the future from compileAsync
+		 * fails with RejectedExecutionException. Zero for no limit.
+		 */
+		public int maxQueuedAsyncCompiles = 0;
 	}
-	private final Cache<CompilationCacheFilenameKey, String> cache;
+
+	private static class CompiledEntry {
+		final CompiledOutput output;
+		final long expiresAt;
+
+		CompiledEntry(CompiledOutput output, long expiresAt) {
+			this.output = output;
+			this.expiresAt = expiresAt;
+		}
+
+		boolean isExpired() {
+			return System.nanoTime() - expiresAt > 0;
+		}
+	}
+
+	/*
+	 * What the filename index knows about a path's source: its content hash, and for versioned sources
+	 * the version and last modified time it had when hashed, and when that version was last checked.
+	 */
+	private static class IndexedSource {
+		final String hash;
+		final String version;
+		final long lastModified;
+		volatile long checkedAt;
+
+		IndexedSource(String hash, String version, long lastModified) {
+			this.hash = hash;
+			this.version = version;
+			this.lastModified = lastModified;
+			this.checkedAt = System.nanoTime();
+		}
+	}
+
+	private final Cache<CompilationCacheContentKey, CompiledEntry> cache;
+	// Content hash to the failure compiling it. Null when failures are not cached.
+	private final Map<String, CompilationException> failures;
+	// Filename to the source it was last compiled with, least recently used first.
+	private final Map<String, IndexedSource> filenameIndex;
+	// Null when compiled output is kept in memory only.
+	private final CompiledAssetStore assetStore;
+	// Added to content hashes to make asset store keys, so output from another CoffeeScript library is never served.
+	private final String assetKeyPrefix;
+	private final CompilationCacheWeights weights;
+	private final long expirationNanos;
+	private final double expirationJitter;
+	private final long versionCheckNanos;
+	private final boolean offHeap;
+	private final boolean gzip;
+	private final Random random = new Random();
+	// Null unless refreshing ahead.
+	private final ExecutorService refreshExecutor;
+	private final ConcurrentMap<String, Boolean> refreshing = new ConcurrentHashMap<String, Boolean>();
+	// Null unless watching.
+	private final SourceWatcher watcher;
+	private final Executor asyncExecutor;
+	// Null when the async executor was given in the options, and is not ours to shut down.
+	private final ExecutorService ownAsyncExecutor;
+	// Filename to its compile in progress through compileAsync.
+	private final ConcurrentMap<String, ListenableFuture<CompiledOutput>> inFlight = new ConcurrentHashMap<String, ListenableFuture<CompiledOutput>>();
 	
 	// Regex to get the line number of the failure.
 	private static final Pattern LINE_NUMBER = Pattern.compile("line ([0-9]+)");
@@ -35,30 +200,344 @@ public class CachingCoffeeCompiler {
 		this(cacheOptions, new ThreadSafeCoffeeScriptCompiler());
 	}
 	
+	public CachingCoffeeCompiler(CacheOptions cacheOptions, ThreadSafeCoffeeScriptCompiler.CompilerOptions compilerOptions) {
+		this(cacheOptions, new ThreadSafeCoffeeScriptCompiler(compilerOptions));
+	}
+	
 	CachingCoffeeCompiler(CacheOptions cacheOptions, ThreadSafeCoffeeScriptCompiler compiler) {
 		this.compiler = compiler;
-		this.cache = CacheBuilder.newBuilder()
-				.maximumSize(cacheOptions.maxSize)
-				.expireAfterWrite(cacheOptions.expirationTime, cacheOptions.expirationTimeUnit)
+		this.weights = new CompilationCacheWeights(cacheOptions.maxWeightBytes);
+		this.expirationNanos = cacheOptions.expirationTimeUnit.toNanos(cacheOptions.expirationTime);
+		this.expirationJitter = cacheOptions.expirationJitter;
+		this.offHeap = cacheOptions.offHeap;
+		this.gzip = cacheOptions.gzip;
+		this.versionCheckNanos = cacheOptions.versionCheckIntervalUnit.toNanos(cacheOptions.versionCheckInterval);
+		CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder();
+		if (cacheOptions.maxWeightBytes <= 0) {
+			builder.maximumSize(cacheOptions.maxSize);
+		}
+		if (cacheOptions.refreshAhead) {
+			this.refreshExecutor = Executors.newSingleThreadExecutor(
+					new ThreadFactoryBuilder().setDaemon(true).setNameFormat("coffeescript-refresh-%d").build());
+		} else {
+			this.refreshExecutor = null;
+			// Entries are checked against their own jittered expiry on access, this only clears out unused ones.
+			builder.expireAfterWrite((long) (expirationNanos * (1 + expirationJitter)), TimeUnit.NANOSECONDS);
+		}
+		this.cache = builder
+				.removalListener(new RemovalListener<CompilationCacheContentKey, CompiledEntry>() {
+					public void onRemoval(RemovalNotification<CompilationCacheContentKey, CompiledEntry> removal) {
+						if (removal.getCause() != RemovalCause.REPLACED) {
+							weights.removed(removal.getKey());
+						}
+					}
+				})
 				.build(new CoffeeCacheLoader());
+		this.failures = failureCache(cacheOptions);
+		CompiledAssetStore assetStore = assetStore(cacheOptions);
+		this.assetKeyPrefix = assetStore != null ? assetKeyPrefix() : null;
+		this.assetStore = assetKeyPrefix != null ? assetStore : null;
+		final int maxIndexSize = cacheOptions.maxSize;
+		this.filenameIndex = Collections.synchronizedMap(new LinkedHashMap<String, IndexedSource>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, IndexedSource> eldest) {
+				return size() > maxIndexSize;
+			}
+		});
+		this.watcher = cacheOptions.watchInterval > 0
+				? new SourceWatcher(this, cacheOptions.watchInterval, cacheOptions.watchIntervalUnit, cacheOptions.maxSize) : null;
+		if (cacheOptions.asyncExecutor != null) {
+			this.ownAsyncExecutor = null;
+			this.asyncExecutor = cacheOptions.asyncExecutor;
+		} else {
+			int maxQueued = cacheOptions.maxQueuedAsyncCompiles > 0 ? cacheOptions.maxQueuedAsyncCompiles : Integer.MAX_VALUE;
+			this.ownAsyncExecutor = new ThreadPoolExecutor(cacheOptions.asyncThreads, cacheOptions.asyncThreads,
+					0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(maxQueued),
+					new ThreadFactoryBuilder().setDaemon(true).setNameFormat("coffeescript-async-%d").build());
+			this.asyncExecutor = ownAsyncExecutor;
+		}
 	}
 	
 
 	/*
 	 * This call will return the cached version if it exists, otherwise will
-	 * block until compiler finishes. Will only invoke the supplier as needed.OsOs
+	 * block until compiler finishes. Invokes the supplier on every call to hash the current source,
+	 * unless it is a VersionedSupplier whose version has not changed.
+	 * A cache hit returns the cached String, except with CacheOptions.offHeap, where every call decodes the
+	 * output into a new one; prefer compileOutput there.
 	 */
 	public String compile(String requestURI, Supplier<String> stringSupplier) {
-		CompilationCacheFilenameKey key = new CompilationCacheFilenameKey();
-		key.filename = requestURI;
-		key.sourceCodeSupplier = stringSupplier;
-		return cache.getUnchecked(key);
+		return compileOutput(requestURI, stringSupplier).getJavaScript();
+	}
+
+	/*
+	 * Like compile, returning the cached output itself, which can be written to a response without
+	 * going through a String.
+	 */
+	public CompiledOutput compileOutput(String requestURI, Supplier<String> stringSupplier) {
+		return compileOutput(requestURI, stringSupplier, false);
+	}
+
+	/*
+	 * Like compileOutput, checking the source's version even if it was checked within the version check
+	 * interval. For the watcher, which has just seen the version change.
+	 */
+	CompiledOutput recompileChanged(String requestURI, VersionedSupplier source) {
+		return compileOutput(requestURI, source, true);
+	}
+
+	private CompiledOutput compileOutput(String requestURI, Supplier<String> stringSupplier, boolean checkVersion) {
+		String version = null;
+		long lastModified = 0;
+		if (stringSupplier instanceof VersionedSupplier) {
+			if (watcher != null) {
+				watcher.watch(requestURI, (VersionedSupplier) stringSupplier);
+			}
+			IndexedSource indexed = filenameIndex.get(requestURI);
+			if (indexed != null && !checkVersion && System.nanoTime() - indexed.checkedAt < versionCheckNanos) {
+				CompiledOutput output = cachedOutput(indexed.hash);
+				if (output != null) {
+					return output;
+				}
+				// Only the output is gone. Keep the version, or the path would no longer count as versioned.
+				version = indexed.version;
+				lastModified = indexed.lastModified;
+			} else {
+				// Taken before reading the source, so a change in between shows up as a new version next time.
+				version = ((VersionedSupplier) stringSupplier).getVersion();
+				if (indexed != null && version != null && version.equals(indexed.version)) {
+					indexed.checkedAt = System.nanoTime();
+					CompiledOutput output = cachedOutput(indexed.hash);
+					if (output != null) {
+						return output;
+					}
+					lastModified = indexed.lastModified;
+				} else if (version != null) {
+					// Only asked for when the version changed, so requests in between never pay for it.
+					lastModified = ((VersionedSupplier) stringSupplier).lastModified();
+				}
+			}
+		}
+		CompilationCacheContentKey key = key(requestURI, stringSupplier.get());
+		CompiledEntry entry = cached(key);
+		if (entry == null && refreshExecutor != null) {
+			CompiledOutput previous = previousOutputWhileCompiling(key, version, lastModified);
+			if (previous != null) {
+				return previous;
+			}
+		}
+		index(key, version, lastModified);
+		if (entry == null) {
+			CompilationException failure = failure(key);
+			if (failure != null) {
+				throw new UncheckedExecutionException(failure);
+			}
+			entry = cache.getUnchecked(key);
+		}
+		return accessed(key, entry.output);
 	}
 
 	public String compile(String requestURI, String coffee) {
 		return compile(requestURI, Suppliers.ofInstance(coffee));
 	}
 
+	/*
+	 * Returns the cached output for a path if its source is known to be unchanged since it was compiled,
+	 * without reading the source or compiling it, or null. Checks the source's version unless it was
+	 * checked within the version check interval.
+	 */
+	public CompiledOutput currentOutput(String requestURI, VersionedSupplier source) {
+		IndexedSource indexed = filenameIndex.get(requestURI);
+		if (indexed == null || indexed.version == null) {
+			return null;
+		}
+		if (System.nanoTime() - indexed.checkedAt >= versionCheckNanos) {
+			if (!indexed.version.equals(source.getVersion())) {
+				return null;
+			}
+			indexed.checkedAt = System.nanoTime();
+		}
+		return cachedOutput(indexed.hash);
+	}
+
+	/*
+	 * Returns the last modified time of a path's source as of its last version check, or 0 if not known.
+	 * Refreshed on the version check schedule rather than asked of the source on every call.
+	 */
+	public long lastModified(String requestURI) {
+		IndexedSource indexed = filenameIndex.get(requestURI);
+		return indexed != null ? indexed.lastModified : 0;
+	}
+
+	/*
+	 * Like compile, without blocking the caller: the supplier is read and the source compiled on the
+	 * async executor. Concurrent calls for the same path share one compile. A VersionedSupplier whose output
+	 * is cached and recently checked gets an already completed future without leaving the calling thread.
+	 * A compilation failure completes the future with its CompilationException.
+	 */
+	public ListenableFuture<String> compileAsync(String requestURI, Supplier<String> stringSupplier) {
+		return Futures.transform(compileOutputAsync(requestURI, stringSupplier), new Function<CompiledOutput, String>() {
+			public String apply(CompiledOutput output) {
+				return output.getJavaScript();
+			}
+		});
+	}
+
+	/*
+	 * Like compileAsync, completing with the cached output itself, for a response to be written from.
+	 */
+	public ListenableFuture<CompiledOutput> compileOutputAsync(final String requestURI, final Supplier<String> stringSupplier) {
+		if (stringSupplier instanceof VersionedSupplier) {
+			CompiledOutput output = recentlyCheckedOutput(requestURI);
+			if (output != null) {
+				return Futures.immediateFuture(output);
+			}
+		}
+		final SettableFuture<CompiledOutput> future = SettableFuture.create();
+		ListenableFuture<CompiledOutput> existing = inFlight.putIfAbsent(requestURI, future);
+		if (existing != null) {
+			return existing;
+		}
+		try {
+			asyncExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						future.set(compileOutput(requestURI, stringSupplier));
+					} catch (UncheckedExecutionException e) {
+						future.setException(e.getCause());
+					} catch (Throwable e) {
+						future.setException(e);
+					} finally {
+						inFlight.remove(requestURI, future);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			inFlight.remove(requestURI, future);
+			future.setException(e);
+		}
+		return future;
+	}
+
+	/*
+	 * Compiles many files in one call, in parallel, and caches the results. Files that are
+	 * already cached are not recompiled. Failures are returned per file instead of thrown.
+	 * Results are in the same order as the sources.
+	 */
+	public Map<String, CompilationResult> compileAll(Map<String, Supplier<String>> sources) {
+		Map<String, CompilationResult> known = Maps.newHashMap();
+		Map<String, CompilationCacheContentKey> keys = Maps.newHashMap();
+		Map<String, Supplier<String>> uncached = Maps.newLinkedHashMap();
+		for (Map.Entry<String, Supplier<String>> source : sources.entrySet()) {
+			String path = source.getKey();
+			CompilationCacheContentKey key;
+			try {
+				key = key(path, source.getValue().get());
+			} catch (RuntimeException e) {
+				known.put(path, CompilationResult.failure(path, e));
+				continue;
+			}
+			index(key, null, 0);
+			CompiledEntry entry = cached(key);
+			CompilationException failure = entry == null ? failure(key) : null;
+			if (entry != null) {
+				known.put(path, CompilationResult.success(path, accessed(key, entry.output).getJavaScript()));
+			} else if (failure != null) {
+				known.put(path, CompilationResult.failure(path, failure));
+			} else {
+				keys.put(path, key);
+			}
+		}
+		List<String> missing = Lists.newArrayList(keys.keySet());
+		if (assetStore != null) {
+			// Claimed in key order, so nodes warming up the same files never each hold a key another waits for.
+			final Map<String, CompilationCacheContentKey> missingKeys = keys;
+			Collections.sort(missing, new Comparator<String>() {
+				public int compare(String path, String otherPath) {
+					return missingKeys.get(path).hash.compareTo(missingKeys.get(otherPath).hash);
+				}
+			});
+		}
+		// Path to the asset key it holds a claim on.
+		Map<String, String> claimed = Maps.newHashMap();
+		try {
+			for (String path : missing) {
+				CompilationCacheContentKey key = keys.get(path);
+				String stored = assetStore != null ? storedOrClaim(assetKey(key)) : null;
+				if (stored != null) {
+					key.sourceCode = null;
+					CompiledEntry entry = newEntry(stored);
+					cache.asMap().put(key, entry);
+					known.put(path, CompilationResult.success(path, accessed(key, entry.output).getJavaScript()));
+				} else {
+					if (assetStore != null) {
+						claimed.put(path, assetKey(key));
+					}
+					uncached.put(path, Suppliers.ofInstance(key.sourceCode));
+				}
+			}
+			Map<String, CompilationResult> compiled = uncached.isEmpty()
+					? Collections.<String, CompilationResult>emptyMap() : compiler.compileAll(uncached);
+			Map<String, CompilationResult> results = Maps.newLinkedHashMap();
+			for (String path : sources.keySet()) {
+				CompilationResult result = known.get(path);
+				if (result == null) {
+					result = compiled.get(path);
+					if (result.isSuccessful()) {
+						CompilationCacheContentKey key = keys.get(path);
+						key.sourceCode = null;
+						CompiledEntry entry = newEntry(result.getJavaScript());
+						cache.asMap().put(key, entry);
+						accessed(key, entry.output);
+						if (claimed.containsKey(path)) {
+							storeClaimed(claimed.remove(path), result.getJavaScript());
+						}
+					} else if (result.getException() instanceof CompilationException) {
+						failed(keys.get(path), (CompilationException) result.getException());
+					}
+				}
+				results.put(path, result);
+			}
+			return results;
+		} finally {
+			for (String assetKey : claimed.values()) {
+				assetStore.release(assetKey);
+			}
+		}
+	}
+
+	/*
+	 * Approximate memory taken by the cached compiled output, in bytes.
+	 */
+	public long getWeightBytes() {
+		return weights.getTotalBytes();
+	}
+
+	public long getSize() {
+		return cache.size();
+	}
+
+	public CompilerWarmup startWarmup() {
+		return compiler.startWarmup();
+	}
+
+	public CompilerPool getCompilerPool() {
+		return compiler.getPool();
+	}
+
+	public void shutdown() {
+		if (watcher != null) {
+			watcher.stop();
+		}
+		if (refreshExecutor != null) {
+			refreshExecutor.shutdownNow();
+		}
+		if (ownAsyncExecutor != null) {
+			ownAsyncExecutor.shutdownNow();
+		}
+		compiler.shutdown();
+	}
+
 	/**
 	 * @return the line number that the exception happened on, or 0 if not found
 	 *         in the message.
@@ -71,18 +550,271 @@ public class CachingCoffeeCompiler {
 		return 0;
 	}
 
-	private final class CoffeeCacheLoader extends CacheLoader<CompilationCacheFilenameKey, String> {
+	static CompilationException compilationException(String path, String sourceCode, JCoffeeScriptCompileException e) {
+		if (e instanceof JCoffeeScriptBudgetExceededException) {
+			return new CompilationBudgetExceededException(path, sourceCode, e.getMessage());
+		}
+		return new CompilationException(path, sourceCode, e.getMessage(), getLineNumber(e), -1, -1);
+	}
+
+	/*
+	 * Records that an entry was used, evicting least recently used entries if it takes the cache over its byte limit.
+	 */
+	private CompiledOutput accessed(CompilationCacheContentKey key, CompiledOutput output) {
+		for (CompilationCacheContentKey evicted : weights.accessed(key, output, cache.asMap())) {
+			cache.invalidate(evicted);
+		}
+		return output;
+	}
+
+	private CompilationCacheContentKey key(String requestURI, String sourceCode) {
+		return new CompilationCacheContentKey(requestURI, sourceCode, ThreadSafeCoffeeScriptCompiler.COMPILE_OPTIONS.toString());
+	}
+
+	/*
+	 * Records a file's current source in the filename index. When the file had different source before,
+	 * the output for that source is dropped unless another file still has it.
+	 */
+	private void index(CompilationCacheContentKey key, String version, long lastModified) {
+		synchronized (filenameIndex) {
+			IndexedSource previous = filenameIndex.put(key.filename, new IndexedSource(key.hash, version, lastModified));
+			if (previous != null && !previous.hash.equals(key.hash) && !isIndexed(previous.hash)) {
+				cache.invalidate(CompilationCacheContentKey.forHash(previous.hash));
+			}
+		}
+	}
+
+	/*
+	 * Returns the version a path's source had when it was last compiled, or null if not known.
+	 */
+	String compiledVersion(String requestURI) {
+		IndexedSource indexed = filenameIndex.get(requestURI);
+		return indexed != null ? indexed.version : null;
+	}
+
+	private boolean isIndexed(String hash) {
+		for (IndexedSource indexed : filenameIndex.values()) {
+			if (indexed.hash.equals(hash)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Returns the output for a path whose version was checked within the version check interval, or null.
+	 */
+	private CompiledOutput recentlyCheckedOutput(String requestURI) {
+		IndexedSource indexed = filenameIndex.get(requestURI);
+		if (indexed == null || indexed.version == null || System.nanoTime() - indexed.checkedAt >= versionCheckNanos) {
+			return null;
+		}
+		return cachedOutput(indexed.hash);
+	}
+
+	/*
+	 * Returns the unexpired output for a content hash that is known to be current, or null.
+	 */
+	private CompiledOutput cachedOutput(String hash) {
+		CompilationCacheContentKey key = CompilationCacheContentKey.forHash(hash);
+		CompiledEntry entry = cache.asMap().get(key);
+		return entry == null || entry.isExpired() ? null : accessed(key, entry.output);
+	}
+
+	/*
+	 * Returns the cached entry for a key, or null. An expired entry is dropped and null returned,
+	 * or when refreshing ahead, returned while it is recompiled in the background.
+	 */
+	private CompiledEntry cached(CompilationCacheContentKey key) {
+		CompiledEntry entry = cache.asMap().get(key);
+		if (entry == null || !entry.isExpired()) {
+			return entry;
+		}
+		if (refreshExecutor != null) {
+			refreshInBackground(key, null, null, 0);
+			return entry;
+		}
+		cache.asMap().remove(key, entry);
+		return null;
+	}
+
+	/*
+	 * For a file whose source changed since it was last compiled, starts compiling the new source in
+	 * the background and returns the output of the old source, if that is still cached.
+	 */
+	private CompiledOutput previousOutputWhileCompiling(CompilationCacheContentKey key, String version, long lastModified) {
+		IndexedSource indexed = filenameIndex.get(key.filename);
+		if (indexed == null || indexed.hash.equals(key.hash)) {
+			return null;
+		}
+		String previousHash = indexed.hash;
+		CompilationCacheContentKey previousKey = CompilationCacheContentKey.forHash(previousHash);
+		CompiledEntry previous = cache.asMap().get(previousKey);
+		if (previous == null) {
+			return null;
+		}
+		refreshInBackground(key, previousHash, version, lastModified);
+		return accessed(previousKey, previous.output);
+	}
+
+	/*
+	 * Recompiles a key on the refresh thread, unless it is already queued. If compiling the new source of a
+	 * changed file fails, the file is taken out of the filename index so its next request compiles in the
+	 * foreground and reports the error, rather than the old output being served forever.
+	 */
+	private void refreshInBackground(final CompilationCacheContentKey key, final String previousHash, final String version,
+			final long lastModified) {
+		if (refreshing.putIfAbsent(key.hash, Boolean.TRUE) != null) {
+			return;
+		}
+		final String sourceCode = key.sourceCode;
+		try {
+			refreshExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						String javaScript = compileThroughStore(key, sourceCode);
+						key.sourceCode = null;
+						CompiledEntry entry = newEntry(javaScript);
+						cache.asMap().put(key, entry);
+						accessed(key, entry.output);
+						if (previousHash != null) {
+							index(key, version, lastModified);
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+						if (e instanceof JCoffeeScriptCompileException) {
+							failed(key, compilationException(key.filename, sourceCode, (JCoffeeScriptCompileException) e));
+						}
+						if (previousHash != null) {
+							synchronized (filenameIndex) {
+								IndexedSource indexed = filenameIndex.get(key.filename);
+								if (indexed != null && previousHash.equals(indexed.hash)) {
+									filenameIndex.remove(key.filename);
+								}
+							}
+						}
+					} finally {
+						refreshing.remove(key.hash);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			refreshing.remove(key.hash);
+		}
+	}
+
+	private CompilationException failure(CompilationCacheContentKey key) {
+		return failures != null ? failures.get(key.hash) : null;
+	}
+
+	private CompilationException failed(CompilationCacheContentKey key, CompilationException failure) {
+		if (failures != null) {
+			failures.put(key.hash, failure);
+		}
+		return failure;
+	}
+
+	private CompiledEntry newEntry(String javaScript) {
+		double jitter;
+		synchronized (random) {
+			jitter = expirationJitter * (2 * random.nextDouble() - 1);
+		}
+		CompiledOutput output = offHeap ? CompiledOutput.offHeap(javaScript, gzip) : CompiledOutput.onHeap(javaScript, gzip);
+		return new CompiledEntry(output, System.nanoTime() + (long) (expirationNanos * (1 + jitter)));
+	}
+
+	private static Map<String, CompilationException> failureCache(CacheOptions cacheOptions) {
+		if (cacheOptions.failureCacheTime <= 0) {
+			return null;
+		}
+		return new MapMaker()
+				.maximumSize(cacheOptions.maxSize)
+				.expireAfterWrite(cacheOptions.failureCacheTime, cacheOptions.failureCacheTimeUnit)
+				.makeMap();
+	}
+
+	private String assetKey(CompilationCacheContentKey key) {
+		return assetKeyPrefix + key.hash;
+	}
+
+	private static CompiledAssetStore assetStore(CacheOptions cacheOptions) {
+		if (cacheOptions.assetStore != null) {
+			return cacheOptions.assetStore;
+		}
+		if (cacheOptions.diskCacheDirectory != null) {
+			return new DiskCompilationCache(cacheOptions.diskCacheDirectory, cacheOptions.maxDiskCacheBytes);
+		}
+		return null;
+	}
+
+	/*
+	 * Returns null, disabling the asset store, if the library cannot be read to fingerprint it.
+	 */
+	private static String assetKeyPrefix() {
+		try {
+			return JCoffeeScriptCompiler.libraryFingerprint().substring(0, 12) + "-";
+		} catch (IOException e) {
+			System.err.println("Not storing compiled CoffeeScript outside memory: " + e);
+			return null;
+		}
+	}
+
+	/*
+	 * Compiles a key's source. With an asset store, output stored for the key is used instead, and otherwise
+	 * the key is claimed, compiled, stored and released, so compilers sharing the store compile it once.
+	 */
+	private String compileThroughStore(CompilationCacheContentKey key, String sourceCode) throws JCoffeeScriptCompileException {
+		if (assetStore == null) {
+			return compiler.compile(sourceCode);
+		}
+		String assetKey = assetKey(key);
+		String stored = storedOrClaim(assetKey);
+		if (stored != null) {
+			return stored;
+		}
+		String javaScript = null;
+		try {
+			javaScript = compiler.compile(sourceCode);
+			return javaScript;
+		} finally {
+			storeClaimed(assetKey, javaScript);
+		}
+	}
+
+	/*
+	 * Returns the stored output for an asset key, waiting for it if another compiler holds the claim on it,
+	 * or null once the caller holds the claim, which it ends with storeClaimed.
+	 */
+	private String storedOrClaim(String assetKey) {
+		String stored = assetStore.get(assetKey);
+		return stored != null ? stored : assetStore.claim(assetKey);
+	}
+
+	/*
+	 * Stores the output compiled under a claim, unless the compile failed and it is null, and ends the claim.
+	 */
+	private void storeClaimed(String assetKey, String javaScript) {
+		try {
+			if (javaScript != null) {
+				assetStore.put(assetKey, javaScript);
+			}
+		} finally {
+			assetStore.release(assetKey);
+		}
+	}
+
+	private final class CoffeeCacheLoader extends CacheLoader<CompilationCacheContentKey, CompiledEntry> {
 		@Override
-		public String load(CompilationCacheFilenameKey request) throws Exception {
-			String sourceCode = request.sourceCodeSupplier.get();
+		public CompiledEntry load(CompilationCacheContentKey request) throws Exception {
+			String sourceCode = request.sourceCode;
 			try {
-				System.out.println("cmp " + request.filename);
-				return compiler.compile(sourceCode);
+				return newEntry(compileThroughStore(request, sourceCode));
 			} catch (JCoffeeScriptCompileException e) {
 				e.printStackTrace();
-				throw new CompilationException(request.filename,
-						sourceCode, e.getMessage(), getLineNumber(e),
-						-1, -1);
+				throw failed(request, compilationException(request.filename, sourceCode, e));
+			} finally {
+				// The key stays in the cache, the source is no longer needed.
+				request.sourceCode = null;
 			}
 		}
 	}
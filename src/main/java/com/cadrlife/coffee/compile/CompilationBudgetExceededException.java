@@ -0,0 +1,13 @@
+package com.cadrlife.coffee.compile;
+
+/**
+ * A compilation that was refused or stopped because the source was too long or the compile took too long.
+ */
+public class CompilationBudgetExceededException extends CompilationException {
+	private static final long serialVersionUID = 1L;
+
+	public CompilationBudgetExceededException(String path, String source, String problem) {
+		super(path, source, problem, 0, -1, -1);
+	}
+
+}
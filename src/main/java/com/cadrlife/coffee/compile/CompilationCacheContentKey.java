@@ -0,0 +1,76 @@
+package com.cadrlife.coffee.compile;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.google.common.base.Charsets;
+
+/*
+ * Identifies a compiled result by a hash of the source and the compiler options, so an edited file
+ * gets a new key and identical files under different paths share one.
+ * Only the hash takes part in equality. The filename and source ride along for the cache loader,
+ * which drops the source once it has compiled it.
+ */
+class CompilationCacheContentKey {
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	final String hash;
+	final String filename;
+	volatile String sourceCode;
+
+	CompilationCacheContentKey(String filename, String sourceCode, String compilerOptions) {
+		this.hash = contentHash(sourceCode, compilerOptions);
+		this.filename = filename;
+		this.sourceCode = sourceCode;
+	}
+
+	private CompilationCacheContentKey(String hash) {
+		this.hash = hash;
+		this.filename = null;
+	}
+
+	/*
+	 * A key only good for lookups and invalidation, not for loading.
+	 */
+	static CompilationCacheContentKey forHash(String hash) {
+		return new CompilationCacheContentKey(hash);
+	}
+
+	static String contentHash(String sourceCode, String compilerOptions) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(compilerOptions.getBytes(Charsets.UTF_8));
+			digest.update((byte) 0);
+			digest.update(sourceCode.getBytes(Charsets.UTF_8));
+			return hex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error(e); // Every JVM provides SHA-1
+		}
+	}
+
+	static String hex(byte[] bytes) {
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+			hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		return hash.equals(((CompilationCacheContentKey) obj).hash);
+	}
+
+}
@@ -1,34 +0,0 @@
-package com.cadrlife.coffee.compile;
-
-import com.google.common.base.Supplier;
-
-class CompilationCacheFilenameKey {
-	String filename;
-	Supplier<String> sourceCodeSupplier;
-	@Override
-	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result
-				+ ((filename == null) ? 0 : filename.hashCode());
-		return result;
-	}
-
-	@Override
-	public boolean equals(Object obj) {
-		if (this == obj)
-			return true;
-		if (obj == null)
-			return false;
-		if (getClass() != obj.getClass())
-			return false;
-		CompilationCacheFilenameKey other = (CompilationCacheFilenameKey) obj;
-		if (filename == null) {
-			if (other.filename != null)
-				return false;
-		} else if (!filename.equals(other.filename))
-			return false;
-		return true;
-	}
-
-}
\ No newline at end of file
@@ -0,0 +1,71 @@
+package com.cadrlife.coffee.compile;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+
+/*
+ * Tracks the memory taken by compiled output in the CachingCoffeeCompiler cache, in least recently used order.
+ * Guava's cache here can only bound the number of entries, so with a byte limit the cache asks this class
+ * which entries to invalidate after each access. A single entry larger than the limit is kept while it is
+ * the most recently used one.
+ */
+class CompilationCacheWeights {
+	private final long maxBytes;
+	private final LinkedHashMap<CompilationCacheContentKey, Long> weights = new LinkedHashMap<CompilationCacheContentKey, Long>(16, 0.75f, true);
+	private long totalBytes;
+
+	/*
+	 * Zero for no limit, only tracking.
+	 */
+	CompilationCacheWeights(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/*
+	 * Records a read or write of an entry and returns the entries to evict to get back under the limit.
+	 * The entry is only counted while cached still holds it: one invalidated since it was read has already
+	 * been through removed, and counting it now would leave its weight behind for good.
+	 */
+	synchronized List<CompilationCacheContentKey> accessed(CompilationCacheContentKey key, CompiledOutput output,
+			Map<CompilationCacheContentKey, ?> cached) {
+		if (weights.get(key) == null && cached.containsKey(key)) {
+			long weight = output.getWeightBytes();
+			weights.put(key, weight);
+			totalBytes += weight;
+		}
+		List<CompilationCacheContentKey> evicted = Lists.newArrayList();
+		Iterator<Map.Entry<CompilationCacheContentKey, Long>> eldest = weights.entrySet().iterator();
+		while (maxBytes > 0 && totalBytes > maxBytes && eldest.hasNext()) {
+			Map.Entry<CompilationCacheContentKey, Long> entry = eldest.next();
+			if (entry.getKey().equals(key)) {
+				break;
+			}
+			evicted.add(entry.getKey());
+			totalBytes -= entry.getValue();
+			eldest.remove();
+		}
+		return evicted;
+	}
+
+	synchronized void removed(CompilationCacheContentKey key) {
+		Long weight = weights.remove(key);
+		if (weight != null) {
+			totalBytes -= weight;
+		}
+	}
+
+	synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/*
+	 * The encoded output, plus the key with its 40 character hash.
+	 */
+	static long weigh(long encodedBytes) {
+		return encodedBytes + 128;
+	}
+}
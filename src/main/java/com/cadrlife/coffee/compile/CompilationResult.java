@@ -0,0 +1,48 @@
+package com.cadrlife.coffee.compile;
+
+/*
+ * Outcome of compiling one file of a batch: the JavaScript, or the exception that prevented it.
+ * Compile errors are reported as CompilationException, failures to read the source as whatever the supplier threw.
+ */
+public class CompilationResult {
+	private final String path;
+	private final String javaScript;
+	private final RuntimeException exception;
+
+	private CompilationResult(String path, String javaScript, RuntimeException exception) {
+		this.path = path;
+		this.javaScript = javaScript;
+		this.exception = exception;
+	}
+
+	static CompilationResult success(String path, String javaScript) {
+		return new CompilationResult(path, javaScript, null);
+	}
+
+	static CompilationResult failure(String path, RuntimeException exception) {
+		return new CompilationResult(path, null, exception);
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public boolean isSuccessful() {
+		return exception == null;
+	}
+
+	/*
+	 * Returns the compiled JavaScript, or throws the exception if the file failed.
+	 */
+	public String getJavaScript() {
+		if (exception != null) {
+			throw exception;
+		}
+		return javaScript;
+	}
+
+	public RuntimeException getException() {
+		return exception;
+	}
+
+}
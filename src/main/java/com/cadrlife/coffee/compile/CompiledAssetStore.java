@@ -0,0 +1,32 @@
+package com.cadrlife.coffee.compile;
+
+/*
+ * Where CachingCoffeeCompiler keeps compiled output besides memory, set with CacheOptions.assetStore.
+ * Keys are content addressed: they are derived from the source, the compiler options and the CoffeeScript
+ * library version, so a stored entry never goes stale and may be shared by every compiler that computes
+ * the same key, on this node or another. Implementations must be thread-safe, and should log and treat
+ * their own failures as misses rather than throw.
+ *
+ * A compile on a miss goes claim, then put and release, so a store shared between nodes can let one
+ * of them compile a key while the others wait for its output.
+ */
+public interface CompiledAssetStore {
+	/*
+	 * Returns the stored output for a key, or null.
+	 */
+	String get(String key);
+
+	/*
+	 * Called before compiling a key that get did not find. Returns null when the caller should compile it,
+	 * after which it calls put on success and release in any case. Otherwise returns the output that
+	 * someone else stored for the key while this call waited.
+	 */
+	String claim(String key);
+
+	void put(String key, String javaScript);
+
+	/*
+	 * Ends a claim that returned null, whether or not the compile succeeded.
+	 */
+	void release(String key);
+}
@@ -0,0 +1,166 @@
+package com.cadrlife.coffee.compile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.base.Charsets;
+
+/*
+ * Compiled JavaScript as held by the CachingCoffeeCompiler cache, encoded once as UTF-8 so it can be
+ * written to a response as is, with its exact length known up front.
+ * On the heap the bytes are kept in an array and written in one call, and the JavaScript is kept as the String
+ * it was created from too, so getJavaScript costs nothing. Off the heap the bytes are kept in a
+ * direct buffer, leaving only this small handle on the heap, and copied out in chunks. A direct buffer is
+ * freed when its handle is garbage collected rather than when it leaves the cache, since a response may
+ * still be writing it.
+ * Either way it carries a hash of its bytes, taken once when it is created, and optionally a gzipped
+ * copy of them, compressed once when it is created and kept alongside.
+ */
+public class CompiledOutput {
+	private static final int CHUNK_SIZE = 8192;
+
+	private final ByteBuffer utf8;
+	// Null off the heap, where it is decoded on demand.
+	private final String javaScript;
+	private final String contentHash;
+	// Null without a gzipped copy.
+	private final ByteBuffer gzipped;
+
+	private CompiledOutput(ByteBuffer utf8, String javaScript, String contentHash, ByteBuffer gzipped) {
+		this.utf8 = utf8;
+		this.javaScript = javaScript;
+		this.contentHash = contentHash;
+		this.gzipped = gzipped;
+	}
+
+	static CompiledOutput onHeap(String javaScript, boolean gzip) {
+		byte[] bytes = javaScript.getBytes(Charsets.UTF_8);
+		byte[] gzipped = gzip ? gzip(bytes) : null;
+		return new CompiledOutput(ByteBuffer.wrap(bytes), javaScript, contentHash(bytes), gzipped != null ? ByteBuffer.wrap(gzipped) : null);
+	}
+
+	static CompiledOutput offHeap(String javaScript, boolean gzip) {
+		byte[] bytes = javaScript.getBytes(Charsets.UTF_8);
+		byte[] gzipped = gzip ? gzip(bytes) : null;
+		return new CompiledOutput(direct(bytes), null, contentHash(bytes), gzipped != null ? direct(gzipped) : null);
+	}
+
+	/*
+	 * Off the heap, decodes the JavaScript on every call. Responses should use writeTo instead.
+	 */
+	public String getJavaScript() {
+		return javaScript != null ? javaScript : Charsets.UTF_8.decode(utf8.duplicate()).toString();
+	}
+
+	/*
+	 * SHA-1 of the JavaScript as UTF-8, in hex. Only changes when the output does, so it makes a strong ETag.
+	 */
+	public String getContentHash() {
+		return contentHash;
+	}
+
+	/*
+	 * Length of the JavaScript as UTF-8, for Content-Length.
+	 */
+	public int getLength() {
+		return utf8.capacity();
+	}
+
+	/*
+	 * Writes the JavaScript as UTF-8.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		write(utf8, out);
+	}
+
+	/*
+	 * Whether there is a gzipped copy. There is none when the cache was told not to keep one, or when
+	 * compressing did not make the output smaller.
+	 */
+	public boolean hasGzip() {
+		return gzipped != null;
+	}
+
+	public int getGzipLength() {
+		checkGzip();
+		return gzipped.capacity();
+	}
+
+	/*
+	 * Writes the gzipped copy, for a response with Content-Encoding: gzip.
+	 */
+	public void writeGzipTo(OutputStream out) throws IOException {
+		checkGzip();
+		write(gzipped, out);
+	}
+
+	/*
+	 * Approximate memory taken, on or off the heap, for the cache's byte budget.
+	 */
+	long getWeightBytes() {
+		long weight = CompilationCacheWeights.weigh(utf8.capacity() + (gzipped != null ? gzipped.capacity() : 0));
+		// Java strings take two bytes per character.
+		return javaScript != null ? weight + 2L * javaScript.length() : weight;
+	}
+
+	@Override
+	public String toString() {
+		return getJavaScript();
+	}
+
+	private void checkGzip() {
+		if (gzipped == null) {
+			throw new IllegalStateException("No gzipped copy was kept");
+		}
+	}
+
+	private static void write(ByteBuffer buffer, OutputStream out) throws IOException {
+		// Positions are per duplicate, so concurrent writers do not interfere.
+		ByteBuffer reader = buffer.duplicate();
+		if (reader.hasArray()) {
+			out.write(reader.array(), reader.arrayOffset() + reader.position(), reader.remaining());
+			return;
+		}
+		byte[] chunk = new byte[Math.min(CHUNK_SIZE, reader.remaining())];
+		while (reader.hasRemaining()) {
+			int length = Math.min(chunk.length, reader.remaining());
+			reader.get(chunk, 0, length);
+			out.write(chunk, 0, length);
+		}
+	}
+
+	private static ByteBuffer direct(byte[] bytes) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+		buffer.put(bytes);
+		buffer.flip();
+		return buffer;
+	}
+
+	/*
+	 * Returns the compressed bytes, or null if they are no smaller.
+	 */
+	private static byte[] gzip(byte[] bytes) {
+		try {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4 + 64);
+			GZIPOutputStream out = new GZIPOutputStream(compressed);
+			out.write(bytes);
+			out.close();
+			return compressed.size() < bytes.length ? compressed.toByteArray() : null;
+		} catch (IOException e) {
+			throw new AssertionError(e); // Not from a ByteArrayOutputStream
+		}
+	}
+
+	private static String contentHash(byte[] bytes) {
+		try {
+			return CompilationCacheContentKey.hex(MessageDigest.getInstance("SHA-1").digest(bytes));
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error(e); // Every JVM provides SHA-1
+		}
+	}
+}
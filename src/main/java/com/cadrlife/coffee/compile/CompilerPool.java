@@ -0,0 +1,231 @@
+package com.cadrlife.coffee.compile;
+
+import java.lang.ref.WeakReference;
+import java.util.LinkedList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cadrlife.coffee.jcoffeescript.JCoffeeScriptCompiler;
+import com.google.common.base.Objects;
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/*
+ * Bounded pool of JCoffeeScriptCompiler instances, so the number of Rhino compilers follows
+ * compile concurrency rather than the container's thread count.
+ * Compilers are created on demand up to the maximum size. Compilers left idle longer than the
+ * idle time are dropped when the pool is next used, or by a background check that runs about once
+ * per idle time, so an unused pool shrinks even when nothing is compiled any more. Callers wait up to the wait time for a
+ * free compiler, after which a CompilerUnavailableException is thrown.
+ */
+public class CompilerPool {
+	private static class IdleCompiler {
+		final JCoffeeScriptCompiler compiler;
+		final long idleSince;
+
+		IdleCompiler(JCoffeeScriptCompiler compiler, long idleSince) {
+			this.compiler = compiler;
+			this.idleSince = idleSince;
+		}
+	}
+
+	private static final long MIN_EVICTION_PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final ScheduledExecutorService EVICTOR = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("coffeescript-pool-evictor-%d").build());
+
+	private final Supplier<JCoffeeScriptCompiler> compilerFactory;
+	private final int maxSize;
+	private final long maxIdleNanos;
+	private final long maxWaitNanos;
+	private final Semaphore permits;
+	// Most recently returned first, so the oldest compilers are the first to go idle for good.
+	private final LinkedList<IdleCompiler> idle = new LinkedList<IdleCompiler>();
+	private final AtomicInteger activeCount = new AtomicInteger();
+	private final AtomicInteger createdCount = new AtomicInteger();
+	private final AtomicLong checkoutCount = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitObservedNanos = new AtomicLong();
+	private final ScheduledFuture<?> eviction;
+
+	CompilerPool(ThreadSafeCoffeeScriptCompiler.CompilerOptions options, Supplier<JCoffeeScriptCompiler> compilerFactory) {
+		this.compilerFactory = compilerFactory;
+		this.maxSize = options.maxCompilers;
+		this.maxIdleNanos = options.maxIdleTimeUnit.toNanos(options.maxIdleTime);
+		this.maxWaitNanos = options.maxWaitTimeUnit.toNanos(options.maxWaitTime);
+		this.permits = new Semaphore(maxSize, true);
+		this.eviction = scheduleEviction(this, Math.max(maxIdleNanos, MIN_EVICTION_PERIOD_NANOS));
+	}
+
+	/*
+	 * The task only holds the pool weakly, and cancels itself once a pool that was never shut down is collected.
+	 */
+	private static ScheduledFuture<?> scheduleEviction(CompilerPool pool, long periodNanos) {
+		final WeakReference<CompilerPool> poolReference = new WeakReference<CompilerPool>(pool);
+		return EVICTOR.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				CompilerPool pool = poolReference.get();
+				if (pool == null) {
+					throw new IllegalStateException("Pool collected"); // Cancels the task
+				}
+				pool.evictIdle();
+			}
+		}, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+	}
+
+	public JCoffeeScriptCompiler checkout() {
+		long start = System.nanoTime();
+		try {
+			if (!permits.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS)) {
+				throw new CompilerUnavailableException("Timed out after " + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos)
+						+ "ms waiting for one of " + maxSize + " CoffeeScript compilers");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CompilerUnavailableException("Interrupted while waiting for a CoffeeScript compiler");
+		}
+		recordWait(System.nanoTime() - start);
+		activeCount.incrementAndGet();
+		try {
+			JCoffeeScriptCompiler compiler = takeIdle();
+			return compiler != null ? compiler : create();
+		} catch (RuntimeException e) {
+			release();
+			throw e;
+		} catch (Error e) {
+			release();
+			throw e;
+		}
+	}
+
+	public void checkin(JCoffeeScriptCompiler compiler) {
+		synchronized (idle) {
+			idle.addFirst(new IdleCompiler(compiler, System.nanoTime()));
+		}
+		release();
+		evictIdle();
+	}
+
+	/*
+	 * Creates a compiler outside the pool, without waiting for or taking a permit, to be handed to prefill.
+	 */
+	JCoffeeScriptCompiler create() {
+		JCoffeeScriptCompiler compiler = compilerFactory.get();
+		createdCount.incrementAndGet();
+		return compiler;
+	}
+
+	/*
+	 * Adds a compiler from create to the idle compilers, unless the compilers checked out and idle already
+	 * make up the maximum size. Returns whether it was kept.
+	 */
+	boolean prefill(JCoffeeScriptCompiler compiler) {
+		synchronized (idle) {
+			if (activeCount.get() + idle.size() >= maxSize) {
+				return false;
+			}
+			idle.addFirst(new IdleCompiler(compiler, System.nanoTime()));
+			return true;
+		}
+	}
+
+	/*
+	 * Stops the background eviction and drops the idle compilers.
+	 */
+	public void shutdown() {
+		eviction.cancel(false);
+		synchronized (idle) {
+			idle.clear();
+		}
+	}
+
+	/*
+	 * Drops compilers that have been idle longer than the idle time.
+	 */
+	public void evictIdle() {
+		long now = System.nanoTime();
+		synchronized (idle) {
+			while (!idle.isEmpty() && now - idle.getLast().idleSince > maxIdleNanos) {
+				idle.removeLast();
+			}
+		}
+	}
+
+	private JCoffeeScriptCompiler takeIdle() {
+		evictIdle();
+		synchronized (idle) {
+			return idle.isEmpty() ? null : idle.removeFirst().compiler;
+		}
+	}
+
+	private void release() {
+		activeCount.decrementAndGet();
+		permits.release();
+	}
+
+	private void recordWait(long waitNanos) {
+		checkoutCount.incrementAndGet();
+		totalWaitNanos.addAndGet(waitNanos);
+		long max = maxWaitObservedNanos.get();
+		while (waitNanos > max && !maxWaitObservedNanos.compareAndSet(max, waitNanos)) {
+			max = maxWaitObservedNanos.get();
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/*
+	 * Number of compilers currently checked out.
+	 */
+	public int getActiveCount() {
+		return activeCount.get();
+	}
+
+	/*
+	 * Number of compilers created and waiting in the pool.
+	 */
+	public int getIdleCount() {
+		synchronized (idle) {
+			return idle.size();
+		}
+	}
+
+	/*
+	 * Approximate number of threads waiting for a compiler.
+	 */
+	public int getWaitingCount() {
+		return permits.getQueueLength();
+	}
+
+	/*
+	 * Number of compilers created over the life of the pool, including evicted ones.
+	 */
+	public int getCreatedCount() {
+		return createdCount.get();
+	}
+
+	public long getCheckoutCount() {
+		return checkoutCount.get();
+	}
+
+	public long getTotalWaitTime(TimeUnit unit) {
+		return unit.convert(totalWaitNanos.get(), TimeUnit.NANOSECONDS);
+	}
+
+	public long getMaxWaitTime(TimeUnit unit) {
+		return unit.convert(maxWaitObservedNanos.get(), TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(this).add("active", getActiveCount()).add("idle", getIdleCount())
+				.add("maxSize", maxSize).add("waiting", getWaitingCount()).add("checkouts", getCheckoutCount())
+				.add("totalWaitMillis", getTotalWaitTime(TimeUnit.MILLISECONDS)).toString();
+	}
+}
@@ -0,0 +1,13 @@
+package com.cadrlife.coffee.compile;
+
+/**
+ * Thrown when no CoffeeScript compiler could be obtained to run a compile.
+ */
+public class CompilerUnavailableException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public CompilerUnavailableException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,152 @@
+package com.cadrlife.coffee.compile;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mozilla.javascript.Context;
+
+import com.cadrlife.coffee.jcoffeescript.JCoffeeScriptCompileException;
+import com.cadrlife.coffee.jcoffeescript.JCoffeeScriptCompiler;
+import com.google.common.base.Objects;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/*
+ * Background warmup of a ThreadSafeCoffeeScriptCompiler, started by ThreadSafeCoffeeScriptCompiler.startWarmup.
+ * Creates every pooled compiler (or worker JVM) in parallel and runs a few representative compiles
+ * through each, so the first requests after a deploy do not pay for it.
+ * Progress can be polled, for example by a readiness check, or waited for with awaitDone.
+ */
+public class CompilerWarmup {
+	static final String[] SAMPLE_SOURCES = {
+		"square = (x) -> x * x\ncubes = (square(n) * n for n in [1..10] when n % 2 is 0)\n",
+		"class Animal\n  constructor: (@name) ->\n  move: (meters) ->\n    alert \"#{@name} moved #{meters}m.\"\n"
+				+ "class Snake extends Animal\n  move: ->\n    super 5\n",
+		"options = {url: '/items', cache: false}\n$.ajax options, (data) =>\n  @render item for item in data.items ? []\n"
+				+ "switch options.url\n  when '/items' then load()\n  else\n    try\n      fail()\n    catch e\n      log e\n",
+	};
+
+	private final ThreadSafeCoffeeScriptCompiler compiler;
+	private final CompilerPool pool;
+	private final int total;
+	private final CountDownLatch done;
+	private final AtomicInteger remaining;
+	private final AtomicInteger completed = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private volatile Throwable failure;
+	private volatile long startNanos;
+	private volatile long endNanos;
+
+	/*
+	 * A null pool means the compiles go to worker JVMs through the compiler.
+	 */
+	CompilerWarmup(ThreadSafeCoffeeScriptCompiler compiler, CompilerPool pool, int total) {
+		this.compiler = compiler;
+		this.pool = pool;
+		this.total = total;
+		this.done = new CountDownLatch(total);
+		this.remaining = new AtomicInteger(total);
+	}
+
+	void start() {
+		startNanos = System.nanoTime();
+		ThreadFactoryBuilder threads = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("coffeescript-warmup-%d");
+		for (int i = 0; i < total; i++) {
+			threads.build().newThread(new Runnable() {
+				public void run() {
+					warmOne();
+				}
+			}).start();
+		}
+	}
+
+	private void warmOne() {
+		try {
+			if (pool == null) {
+				compileSamples(null);
+			} else {
+				JCoffeeScriptCompiler.enterContext();
+				try {
+					// Created outside the pool, so each thread warms its own compiler without holding a permit
+					// that requests arriving during warmup would have to wait for.
+					JCoffeeScriptCompiler created = pool.create();
+					compileSamples(created);
+					pool.prefill(created);
+				} finally {
+					Context.exit();
+				}
+			}
+			completed.incrementAndGet();
+		} catch (Throwable e) {
+			e.printStackTrace();
+			failed.incrementAndGet();
+			failure = e;
+		} finally {
+			if (remaining.decrementAndGet() == 0) {
+				endNanos = System.nanoTime();
+			}
+			done.countDown();
+		}
+	}
+
+	private void compileSamples(JCoffeeScriptCompiler pooled) throws JCoffeeScriptCompileException {
+		for (String source : SAMPLE_SOURCES) {
+			if (pooled != null) {
+				pooled.compile(source);
+			} else {
+				compiler.compile(source);
+			}
+		}
+	}
+
+	/*
+	 * Number of compilers being warmed.
+	 */
+	public int getTotal() {
+		return total;
+	}
+
+	/*
+	 * Number of compilers warmed so far.
+	 */
+	public int getCompletedCount() {
+		return completed.get();
+	}
+
+	public int getFailedCount() {
+		return failed.get();
+	}
+
+	/*
+	 * True once every compiler has been warmed or has failed to.
+	 */
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	/*
+	 * The last warmup failure, or null.
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	/*
+	 * Returns whether warmup finished within the timeout.
+	 */
+	public boolean awaitDone(long timeout, TimeUnit unit) throws InterruptedException {
+		return done.await(timeout, unit);
+	}
+
+	public long getElapsedTime(TimeUnit unit) {
+		long end = isDone() ? endNanos : System.nanoTime();
+		return unit.convert(end - startNanos, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(this).add("done", isDone()).add("completed", getCompletedCount())
+				.add("failed", getFailedCount()).add("total", total)
+				.add("elapsedMillis", getElapsedTime(TimeUnit.MILLISECONDS)).toString();
+	}
+}
@@ -0,0 +1,57 @@
+package com.cadrlife.coffee.compile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.cadrlife.coffee.jcoffeescript.CompileBudget;
+import com.cadrlife.coffee.jcoffeescript.JCoffeeScriptBudgetExceededException;
+import com.cadrlife.coffee.jcoffeescript.JCoffeeScriptCompileException;
+import com.cadrlife.coffee.jcoffeescript.JCoffeeScriptCompiler;
+
+/*
+ * Entry point of a compiler worker JVM started by ProcessCompilerWorkers. Answers requests on stdin
+ * until stdin is closed, see CompilerWorkerProtocol.
+ * 
+ * Arguments: <max compile millis> <max source length> [scope snapshot directory]
+ */
+public class CompilerWorkerMain {
+
+	public static void main(String[] args) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+		// Anything else printed must not end up in the protocol stream.
+		System.setOut(System.err);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+
+		File scopeSnapshotDirectory = args.length > 2 ? new File(args[2]) : null;
+		JCoffeeScriptCompiler compiler = new JCoffeeScriptCompiler(ThreadSafeCoffeeScriptCompiler.COMPILE_OPTIONS, scopeSnapshotDirectory);
+		compiler.setBudget(new CompileBudget(Long.parseLong(args[0]), TimeUnit.MILLISECONDS, Integer.parseInt(args[1])));
+
+		int kind;
+		while ((kind = in.read()) != -1) {
+			if (kind == CompilerWorkerProtocol.PING) {
+				out.writeByte(CompilerWorkerProtocol.PONG);
+			} else {
+				String source = CompilerWorkerProtocol.readString(in);
+				try {
+					String javaScript = compiler.compile(source);
+					out.writeByte(CompilerWorkerProtocol.OK);
+					CompilerWorkerProtocol.writeString(out, javaScript);
+				} catch (JCoffeeScriptBudgetExceededException e) {
+					out.writeByte(CompilerWorkerProtocol.BUDGET_EXCEEDED);
+					CompilerWorkerProtocol.writeString(out, e.getMessage());
+				} catch (JCoffeeScriptCompileException e) {
+					out.writeByte(CompilerWorkerProtocol.ERROR);
+					CompilerWorkerProtocol.writeString(out, e.getMessage());
+				}
+			}
+			out.flush();
+		}
+	}
+}
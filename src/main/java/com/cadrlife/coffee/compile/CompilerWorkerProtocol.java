@@ -0,0 +1,35 @@
+package com.cadrlife.coffee.compile;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import com.google.common.base.Charsets;
+
+/*
+ * Framing used between ProcessCompilerWorkers and CompilerWorkerMain over the worker's stdin and stdout.
+ * A request is a kind byte, followed for COMPILE by a length-prefixed UTF-8 source.
+ * A response is a status byte, followed for everything but PONG by a length-prefixed UTF-8 payload:
+ * the JavaScript, or the compile error message.
+ */
+class CompilerWorkerProtocol {
+	static final int COMPILE = 1;
+	static final int PING = 2;
+
+	static final int OK = 0;
+	static final int ERROR = 1;
+	static final int BUDGET_EXCEEDED = 2;
+	static final int PONG = 3;
+
+	static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(Charsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, Charsets.UTF_8);
+	}
+}
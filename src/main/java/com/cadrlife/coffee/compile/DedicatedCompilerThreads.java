@@ -0,0 +1,102 @@
+package com.cadrlife.coffee.compile;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.javascript.Context;
+
+import com.cadrlife.coffee.jcoffeescript.JCoffeeScriptCompileException;
+import com.cadrlife.coffee.jcoffeescript.JCoffeeScriptCompiler;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/*
+ * Runs compiles on a fixed set of long-lived threads, one per pooled compiler. Each thread keeps a
+ * Rhino Context entered for its whole life, so callers on short-lived executor threads only wait on
+ * a Future and never pay for Context setup or run the deeply recursive compiler on their own stack.
+ * As with the pool, a caller waits at most the wait time for a thread to take its compile, including
+ * while the threads are busy with a batch.
+ */
+class DedicatedCompilerThreads {
+	private final CompilerPool pool;
+	private final ExecutorService executor;
+	private final long maxWaitNanos;
+
+	DedicatedCompilerThreads(CompilerPool pool, long maxWaitNanos) {
+		this.pool = pool;
+		this.maxWaitNanos = maxWaitNanos;
+		this.executor = Executors.newFixedThreadPool(pool.getMaxSize(), compilerThreadFactory());
+	}
+
+	public String compile(final String coffee) throws JCoffeeScriptCompileException {
+		final CountDownLatch started = new CountDownLatch(1);
+		Future<String> result = executor.submit(new Callable<String>() {
+			public String call() throws Exception {
+				started.countDown();
+				JCoffeeScriptCompiler compiler = pool.checkout();
+				try {
+					return compiler.compile(coffee);
+				} finally {
+					pool.checkin(compiler);
+				}
+			}
+		});
+		try {
+			// Once started, the compile is bounded by the compile budget instead.
+			if (!started.await(maxWaitNanos, TimeUnit.NANOSECONDS) && result.cancel(false)) {
+				throw new CompilerUnavailableException("Timed out after " + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos)
+						+ "ms waiting for one of " + pool.getMaxSize() + " CoffeeScript compiler threads");
+			}
+			return result.get();
+		} catch (InterruptedException e) {
+			result.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new CompilerUnavailableException("Interrupted while waiting for a CoffeeScript compile");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof JCoffeeScriptCompileException) {
+				throw (JCoffeeScriptCompileException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
+		return executor.invokeAll(tasks);
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	private static ThreadFactory compilerThreadFactory() {
+		final ThreadFactory named = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("coffeescript-compiler-%d").build();
+		return new ThreadFactory() {
+			public Thread newThread(final Runnable runnable) {
+				return named.newThread(new Runnable() {
+					public void run() {
+						JCoffeeScriptCompiler.enterContext();
+						try {
+							runnable.run();
+						} finally {
+							Context.exit();
+						}
+					}
+				});
+			}
+		};
+	}
+}
@@ -0,0 +1,147 @@
+package com.cadrlife.coffee.compile;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Closeables;
+
+/*
+ * CompiledAssetStore on local disk, the default second cache tier behind the in-memory cache of
+ * CachingCoffeeCompiler, so compiled output survives restarts. One file per compiled source, named by its key.
+ * Files are written to a temporary file and renamed, so readers never see partial output, and read
+ * through a memory mapping. Once the directory grows past its size limit the least recently read files
+ * are deleted until it is back under 90% of the limit. Failures are logged and treated as cache misses.
+ */
+class DiskCompilationCache implements CompiledAssetStore {
+	private static final String SUFFIX = ".js";
+
+	private final File directory;
+	private final long maxBytes;
+	private final AtomicLong sizeBytes = new AtomicLong();
+	private final Object cleanupLock = new Object();
+
+	DiskCompilationCache(File directory, long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		directory.mkdirs();
+		for (File file : cachedFiles()) {
+			sizeBytes.addAndGet(file.length());
+		}
+	}
+
+	public String get(String key) {
+		File file = file(key);
+		if (!file.isFile()) {
+			return null;
+		}
+		RandomAccessFile in = null;
+		try {
+			in = new RandomAccessFile(file, "r");
+			MappedByteBuffer mapped = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+			String javaScript = Charsets.UTF_8.decode(mapped).toString();
+			// Last modified doubles as last used time for the cleanup.
+			file.setLastModified(System.currentTimeMillis());
+			return javaScript;
+		} catch (IOException e) {
+			System.err.println("Could not read cached CoffeeScript output " + file + ": " + e);
+			return null;
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+	}
+
+	/*
+	 * Only one node uses the directory, and compiles within it are already deduplicated in memory.
+	 */
+	public String claim(String key) {
+		return null;
+	}
+
+	public void put(String key, String javaScript) {
+		File file = file(key);
+		File temp = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+		FileOutputStream out = null;
+		boolean saved = false;
+		try {
+			byte[] bytes = javaScript.getBytes(Charsets.UTF_8);
+			out = new FileOutputStream(temp);
+			out.write(bytes);
+			out.close();
+			long replaced = file.length();
+			saved = temp.renameTo(file);
+			if (saved) {
+				sizeBytes.addAndGet(bytes.length - replaced);
+			}
+		} catch (IOException e) {
+			System.err.println("Could not write cached CoffeeScript output " + file + ": " + e);
+		} finally {
+			Closeables.closeQuietly(out);
+			if (!saved) {
+				temp.delete();
+			}
+		}
+		if (sizeBytes.get() > maxBytes) {
+			cleanup();
+		}
+	}
+
+	public void release(String key) {
+	}
+
+	long getSizeBytes() {
+		return sizeBytes.get();
+	}
+
+	private void cleanup() {
+		synchronized (cleanupLock) {
+			if (sizeBytes.get() <= maxBytes) {
+				return;
+			}
+			File[] files = cachedFiles();
+			final long[] lastUsed = new long[files.length];
+			Integer[] order = new Integer[files.length];
+			long total = 0;
+			for (int i = 0; i < files.length; i++) {
+				lastUsed[i] = files[i].lastModified();
+				order[i] = i;
+				total += files[i].length();
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return lastUsed[a] < lastUsed[b] ? -1 : lastUsed[a] == lastUsed[b] ? 0 : 1;
+				}
+			});
+			long target = maxBytes - maxBytes / 10;
+			for (int i = 0; i < order.length && total > target; i++) {
+				File file = files[order[i]];
+				long length = file.length();
+				if (file.delete()) {
+					total -= length;
+				}
+			}
+			sizeBytes.set(total);
+		}
+	}
+
+	private File[] cachedFiles() {
+		File[] files = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.getName().endsWith(SUFFIX);
+			}
+		});
+		return files != null ? files : new File[0];
+	}
+
+	private File file(String key) {
+		return new File(directory, key + SUFFIX);
+	}
+}
@@ -0,0 +1,283 @@
+package com.cadrlife.coffee.compile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mozilla.javascript.Context;
+
+import com.cadrlife.coffee.jcoffeescript.JCoffeeScriptBudgetExceededException;
+import com.cadrlife.coffee.jcoffeescript.JCoffeeScriptCompileException;
+import com.cadrlife.coffee.jcoffeescript.JCoffeeScriptCompiler;
+import com.google.common.base.Joiner;
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/*
+ * Compiles in a fixed number of separate worker JVMs running CompilerWorkerMain, so the garbage
+ * Rhino produces never touches this JVM's heap.
+ * Workers are started on first use and replaced after a set number of compiles. A worker that has been
+ * idle for a while is pinged before use, and a worker that does not answer within the worker timeout
+ * is killed and replaced.
+ * After shutdown, new compiles are refused, and workers still compiling are killed as they are checked in.
+ */
+class ProcessCompilerWorkers {
+	private static final long PING_AFTER_IDLE_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+	private final int size;
+	private final List<String> command;
+	private final int compilesPerWorker;
+	private final long maxWaitNanos;
+	private final long workerTimeoutNanos;
+	private final BlockingQueue<WorkerProcess> idle;
+	private final ScheduledExecutorService watchdog;
+	private final AtomicInteger startedCount = new AtomicInteger();
+	private volatile boolean shutdown;
+
+	ProcessCompilerWorkers(ThreadSafeCoffeeScriptCompiler.CompilerOptions options) {
+		this.size = options.workerProcesses;
+		this.command = workerCommand(options);
+		this.compilesPerWorker = options.compilesPerWorker;
+		this.maxWaitNanos = options.maxWaitTimeUnit.toNanos(options.maxWaitTime);
+		this.workerTimeoutNanos = options.workerTimeoutUnit.toNanos(options.workerTimeout);
+		this.idle = new ArrayBlockingQueue<WorkerProcess>(options.workerProcesses);
+		for (int i = 0; i < options.workerProcesses; i++) {
+			idle.add(new WorkerProcess());
+		}
+		this.watchdog = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("coffeescript-worker-watchdog-%d").build());
+	}
+
+	public String compile(String coffee) throws JCoffeeScriptCompileException {
+		WorkerProcess worker = checkout();
+		try {
+			return worker.compile(coffee);
+		} catch (IOException e) {
+			worker.destroy();
+			throw new CompilerUnavailableException("CoffeeScript compiler worker failed: " + e);
+		} finally {
+			checkin(worker);
+		}
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/*
+	 * Number of worker JVMs started so far, including replacements.
+	 */
+	public int getStartedCount() {
+		return startedCount.get();
+	}
+
+	public void shutdown() {
+		shutdown = true;
+		watchdog.shutdownNow();
+		destroyIdle();
+	}
+
+	private void destroyIdle() {
+		List<WorkerProcess> workers = Lists.newArrayList();
+		idle.drainTo(workers);
+		for (WorkerProcess worker : workers) {
+			worker.destroy();
+		}
+	}
+
+	private WorkerProcess checkout() {
+		checkNotShutdown();
+		try {
+			WorkerProcess worker = idle.poll(maxWaitNanos, TimeUnit.NANOSECONDS);
+			if (worker == null) {
+				throw new CompilerUnavailableException("Timed out after " + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos)
+						+ "ms waiting for a CoffeeScript compiler worker");
+			}
+			return worker;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CompilerUnavailableException("Interrupted while waiting for a CoffeeScript compiler worker");
+		}
+	}
+
+	private void checkin(WorkerProcess worker) {
+		if (shutdown) {
+			worker.destroy();
+			return;
+		}
+		if (worker.isDestroyed() || worker.compileCount >= compilesPerWorker) {
+			worker.destroy();
+			worker = new WorkerProcess();
+		}
+		idle.add(worker);
+		// Shutdown may have drained the idle workers just before this one was added.
+		if (shutdown) {
+			destroyIdle();
+		}
+	}
+
+	private void checkNotShutdown() {
+		if (shutdown) {
+			throw new CompilerUnavailableException("CoffeeScript compiler workers have been shut down");
+		}
+	}
+
+	private class WorkerProcess {
+		private Process process;
+		private DataOutputStream in;
+		private DataInputStream out;
+		private int compileCount;
+		private long idleSince = System.nanoTime();
+		private volatile boolean destroyed;
+
+		String compile(String coffee) throws IOException, JCoffeeScriptCompileException {
+			ensureHealthy();
+			compileCount++;
+			ScheduledFuture<?> timeout = killAfterTimeout();
+			try {
+				in.writeByte(CompilerWorkerProtocol.COMPILE);
+				CompilerWorkerProtocol.writeString(in, coffee);
+				in.flush();
+				int status = out.readUnsignedByte();
+				String payload = CompilerWorkerProtocol.readString(out);
+				if (status == CompilerWorkerProtocol.BUDGET_EXCEEDED) {
+					throw new JCoffeeScriptBudgetExceededException(payload);
+				} else if (status == CompilerWorkerProtocol.ERROR) {
+					throw new JCoffeeScriptCompileException(payload);
+				}
+				return payload;
+			} finally {
+				timeout.cancel(false);
+				idleSince = System.nanoTime();
+			}
+		}
+
+		private void ensureHealthy() throws IOException {
+			if (process != null && System.nanoTime() - idleSince > PING_AFTER_IDLE_NANOS && !ping()) {
+				destroy();
+			}
+			if (process == null || destroyed) {
+				start();
+			}
+		}
+
+		private boolean ping() {
+			ScheduledFuture<?> timeout = killAfterTimeout();
+			try {
+				in.writeByte(CompilerWorkerProtocol.PING);
+				in.flush();
+				return out.readUnsignedByte() == CompilerWorkerProtocol.PONG;
+			} catch (IOException e) {
+				return false;
+			} finally {
+				timeout.cancel(false);
+			}
+		}
+
+		private void start() throws IOException {
+			process = new ProcessBuilder(command).start();
+			destroyed = false;
+			startedCount.incrementAndGet();
+			compileCount = 0;
+			in = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+			out = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+			drainInBackground(process);
+		}
+
+		private ScheduledFuture<?> killAfterTimeout() {
+			try {
+				return watchdog.schedule(new Runnable() {
+					public void run() {
+						destroy();
+					}
+				}, workerTimeoutNanos, TimeUnit.NANOSECONDS);
+			} catch (RejectedExecutionException e) {
+				// Shut down while this worker was checked out; nothing would kill it if it hung.
+				destroy();
+				checkNotShutdown();
+				throw e;
+			}
+		}
+
+		boolean isDestroyed() {
+			return destroyed;
+		}
+
+		void destroy() {
+			destroyed = true;
+			if (process != null) {
+				Closeables.closeQuietly(in);
+				process.destroy();
+			}
+		}
+	}
+
+	/*
+	 * Copies a worker's stderr to ours, so its diagnostics are visible and it never blocks on a full pipe.
+	 */
+	private static void drainInBackground(final Process process) {
+		Thread drain = new Thread(new Runnable() {
+			public void run() {
+				byte[] buffer = new byte[4096];
+				try {
+					int read;
+					while ((read = process.getErrorStream().read(buffer)) != -1) {
+						System.err.write(buffer, 0, read);
+					}
+				} catch (IOException e) {
+					// The worker is gone.
+				}
+			}
+		}, "coffeescript-worker-stderr");
+		drain.setDaemon(true);
+		drain.start();
+	}
+
+	private static List<String> workerCommand(ThreadSafeCoffeeScriptCompiler.CompilerOptions options) {
+		List<String> command = Lists.newArrayList();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.addAll(options.workerJvmOptions);
+		command.add("-cp");
+		command.add(workerClasspath());
+		command.add(CompilerWorkerMain.class.getName());
+		command.add(String.valueOf(options.maxCompileTimeUnit.toMillis(options.maxCompileTime)));
+		command.add(String.valueOf(options.maxSourceLength));
+		if (options.scopeSnapshotDirectory != null) {
+			command.add(options.scopeSnapshotDirectory.getPath());
+		}
+		return command;
+	}
+
+	/*
+	 * The worker needs this library, Rhino and Guava. In a servlet container they live in the webapp's
+	 * class loader rather than on java.class.path, so find them by where their classes were loaded from.
+	 */
+	private static String workerClasspath() {
+		Set<String> entries = Sets.newLinkedHashSet();
+		for (Class<?> type : new Class<?>[] {CompilerWorkerMain.class, JCoffeeScriptCompiler.class, Context.class, Supplier.class}) {
+			try {
+				entries.add(new File(type.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath());
+			} catch (URISyntaxException e) {
+				throw new IllegalStateException("Cannot locate the classes of " + type, e);
+			}
+		}
+		return Joiner.on(File.pathSeparator).join(entries);
+	}
+}
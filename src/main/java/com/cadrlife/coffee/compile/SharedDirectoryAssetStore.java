@@ -0,0 +1,128 @@
+package com.cadrlife.coffee.compile;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+/*
+ * CompiledAssetStore in a directory that several nodes mount, so a file compiled by one node is served
+ * by all of them. Output is kept as one file per content-addressed key, written to a uniquely named
+ * temporary file and renamed into place, so readers on any node never see partial output.
+ * A node about to compile a key first creates a lock file for it; other nodes that miss the same key
+ * wait for the output to appear instead of compiling it too. A lock older than the lock timeout is taken
+ * to belong to a node that died, and is taken over. A node that waits that long compiles without the lock.
+ * Nothing is ever deleted apart from lock files, since entries never go stale; clearing out output for
+ * sources that no longer exist is left to whoever manages the volume.
+ */
+public class SharedDirectoryAssetStore implements CompiledAssetStore {
+	private static final String SUFFIX = ".js";
+	private static final String LOCK_SUFFIX = ".lock";
+	private static final long POLL_MILLIS = 50;
+
+	private final File directory;
+	private final long lockTimeoutMillis;
+	// Keys this store holds the lock file for.
+	private final Set<String> held = Collections.synchronizedSet(Sets.<String>newHashSet());
+
+	public SharedDirectoryAssetStore(File directory) {
+		this(directory, 2, TimeUnit.MINUTES);
+	}
+
+	/*
+	 * The lock timeout should comfortably exceed the longest compile.
+	 */
+	public SharedDirectoryAssetStore(File directory, long lockTimeout, TimeUnit lockTimeoutUnit) {
+		this.directory = directory;
+		this.lockTimeoutMillis = lockTimeoutUnit.toMillis(lockTimeout);
+		directory.mkdirs();
+	}
+
+	public String get(String key) {
+		File file = file(key);
+		try {
+			return Files.toString(file, Charsets.UTF_8);
+		} catch (FileNotFoundException e) {
+			return null;
+		} catch (IOException e) {
+			System.err.println("Could not read shared CoffeeScript output " + file + ": " + e);
+			return null;
+		}
+	}
+
+	public String claim(String key) {
+		File lock = lock(key);
+		long deadline = System.currentTimeMillis() + lockTimeoutMillis;
+		while (true) {
+			String stored = get(key);
+			if (stored != null) {
+				return stored;
+			}
+			try {
+				if (lock.createNewFile()) {
+					held.add(key);
+					return null;
+				}
+			} catch (IOException e) {
+				System.err.println("Could not lock shared CoffeeScript output " + lock + ": " + e);
+				return null;
+			}
+			long lockedAt = lock.lastModified();
+			if (lockedAt != 0 && System.currentTimeMillis() - lockedAt > lockTimeoutMillis) {
+				System.err.println("Taking over stale lock " + lock);
+				lock.delete();
+				continue;
+			}
+			if (System.currentTimeMillis() > deadline) {
+				return null;
+			}
+			try {
+				Thread.sleep(POLL_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+	}
+
+	public void put(String key, String javaScript) {
+		File file = file(key);
+		File temp = null;
+		try {
+			temp = File.createTempFile(key + "-", ".tmp", directory);
+			Files.write(javaScript, temp, Charsets.UTF_8);
+			if (temp.renameTo(file)) {
+				temp = null;
+			} else if (!file.isFile()) {
+				// Some platforms will not rename over an existing file, which would already have the same output.
+				System.err.println("Could not move shared CoffeeScript output into place: " + file);
+			}
+		} catch (IOException e) {
+			System.err.println("Could not write shared CoffeeScript output " + file + ": " + e);
+		} finally {
+			if (temp != null) {
+				temp.delete();
+			}
+		}
+	}
+
+	public void release(String key) {
+		if (held.remove(key)) {
+			lock(key).delete();
+		}
+	}
+
+	private File file(String key) {
+		return new File(directory, key + SUFFIX);
+	}
+
+	private File lock(String key) {
+		return new File(directory, key + LOCK_SUFFIX);
+	}
+}
@@ -0,0 +1,92 @@
+package com.cadrlife.coffee.compile;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/*
+ * Recompiles changed sources in the background, so requests after an edit or redeploy find them compiled.
+ * Polls the version of every VersionedSupplier the cache has been asked to compile, rather than using
+ * file system notifications, which also covers sources that are not plain files.
+ * A source has changed when its version differs from the one the cache last compiled it at. The change is
+ * acted on once the same new version has been seen on two polls in a row, so a file still being written,
+ * or a burst of edits, is compiled once.
+ */
+class SourceWatcher {
+	private static class WatchedSource {
+		final VersionedSupplier supplier;
+		String pendingVersion;
+
+		WatchedSource(VersionedSupplier supplier) {
+			this.supplier = supplier;
+		}
+	}
+
+	private final CachingCoffeeCompiler compiler;
+	private final Map<String, WatchedSource> watched;
+	private final ScheduledExecutorService poller;
+
+	SourceWatcher(CachingCoffeeCompiler compiler, long interval, TimeUnit unit, final int maxWatched) {
+		this.compiler = compiler;
+		this.watched = new LinkedHashMap<String, WatchedSource>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, WatchedSource> eldest) {
+				return size() > maxWatched;
+			}
+		};
+		this.poller = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("coffeescript-watcher-%d").build());
+		poller.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				poll();
+			}
+		}, interval, interval, unit);
+	}
+
+	void watch(String requestURI, VersionedSupplier supplier) {
+		synchronized (watched) {
+			if (watched.get(requestURI) == null) {
+				watched.put(requestURI, new WatchedSource(supplier));
+			}
+		}
+	}
+
+	void stop() {
+		poller.shutdownNow();
+	}
+
+	private void poll() {
+		List<Map.Entry<String, WatchedSource>> sources;
+		synchronized (watched) {
+			sources = Lists.newArrayList(watched.entrySet());
+		}
+		for (Map.Entry<String, WatchedSource> entry : sources) {
+			WatchedSource source = entry.getValue();
+			String version;
+			try {
+				version = source.supplier.getVersion();
+			} catch (RuntimeException e) {
+				continue;
+			}
+			String compiledVersion = compiler.compiledVersion(entry.getKey());
+			if (version == null || compiledVersion == null || version.equals(compiledVersion)) {
+				source.pendingVersion = null;
+			} else if (!version.equals(source.pendingVersion)) {
+				source.pendingVersion = version;
+			} else {
+				source.pendingVersion = null;
+				try {
+					compiler.recompileChanged(entry.getKey(), source.supplier);
+				} catch (RuntimeException e) {
+					// Reported when the file is requested.
+				}
+			}
+		}
+	}
+}
@@ -1,20 +1,270 @@
 package com.cadrlife.coffee.compile;
 
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.javascript.Context;
+
+import com.cadrlife.coffee.jcoffeescript.CompileBudget;
 import com.cadrlife.coffee.jcoffeescript.JCoffeeScriptCompileException;
 import com.cadrlife.coffee.jcoffeescript.JCoffeeScriptCompiler;
+import com.cadrlife.coffee.jcoffeescript.Option;
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /*
  * Thread-safe wrapper around JCoffeeScriptCompiler.
+ * Compilers are borrowed from a bounded CompilerPool for the duration of each compile.
+ * With CompilerOptions.sharedScope every pooled compiler uses one copy of the CoffeeScript library,
+ * trading compile parallelism for memory and warmup time.
+ * With CompilerOptions.dedicatedThreads compiles are handed to a fixed set of compiler threads instead
+ * of running on the caller's thread, which suits virtual threads and large elastic executors.
+ * With CompilerOptions.workerProcesses compiles are sent to separate worker JVMs instead, and the
+ * in-process pool is left unused.
  */
 public class ThreadSafeCoffeeScriptCompiler {
-	private static ThreadLocal<JCoffeeScriptCompiler> compiler = new ThreadLocal<JCoffeeScriptCompiler>() {
-		protected JCoffeeScriptCompiler initialValue() {
-			return new JCoffeeScriptCompiler();
-		};
-	};
+	public static class CompilerOptions {
+		/*
+		 * Evaluate the CoffeeScript library once into a sealed scope shared by every compiler.
+		 * Compiles against the shared scope are serialized, since the library is not reentrant.
+		 */
+		public boolean sharedScope = false;
+		public int maxCompilers = Runtime.getRuntime().availableProcessors();
+		public long maxIdleTime = 10;
+		public TimeUnit maxIdleTimeUnit = TimeUnit.MINUTES;
+		public long maxWaitTime = 30;
+		public TimeUnit maxWaitTimeUnit = TimeUnit.SECONDS;
+		/*
+		 * Run compiles on maxCompilers long-lived threads rather than on the calling thread.
+		 */
+		public boolean dedicatedThreads = false;
+		/*
+		 * Directory for a serialized copy of the initialized CoffeeScript library, so new compilers
+		 * restore it instead of evaluating the library. Null to always evaluate.
+		 */
+		public File scopeSnapshotDirectory = null;
+		/*
+		 * Longest a single compile may run before it fails with CompilationBudgetExceededException. Zero for no limit.
+		 */
+		public long maxCompileTime = 0;
+		public TimeUnit maxCompileTimeUnit = TimeUnit.MILLISECONDS;
+		/*
+		 * Longest source, in characters, that will be compiled. Zero for no limit.
+		 */
+		public int maxSourceLength = 0;
+		/*
+		 * Compile in this many separate worker JVMs, keeping Rhino's garbage out of this heap. Zero to compile in process.
+		 */
+		public int workerProcesses = 0;
+		/*
+		 * Worker JVMs are replaced after this many compiles.
+		 */
+		public int compilesPerWorker = 1000;
+		public List<String> workerJvmOptions = Lists.newArrayList("-Xmx256m");
+		/*
+		 * A worker JVM that does not answer within this time is killed and replaced.
+		 */
+		public long workerTimeout = 60;
+		public TimeUnit workerTimeoutUnit = TimeUnit.SECONDS;
+	}
+	// Options every compiler is created with, also part of the cache key for compiled output.
+	static final List<Option> COMPILE_OPTIONS = Collections.<Option>emptyList();
+	private final CompilerPool pool;
+	private final DedicatedCompilerThreads dedicatedThreads;
+	private final ProcessCompilerWorkers processWorkers;
+
+	public ThreadSafeCoffeeScriptCompiler() {
+		this(new CompilerOptions());
+	}
+
+	public ThreadSafeCoffeeScriptCompiler(CompilerOptions compilerOptions) {
+		this.pool = new CompilerPool(compilerOptions, compilerFactory(compilerOptions));
+		this.dedicatedThreads = compilerOptions.dedicatedThreads ? new DedicatedCompilerThreads(pool, compilerOptions.maxWaitTimeUnit.toNanos(compilerOptions.maxWaitTime)) : null;
+		this.processWorkers = compilerOptions.workerProcesses > 0 ? new ProcessCompilerWorkers(compilerOptions) : null;
+	}
 
 	public String compile(String coffee) throws JCoffeeScriptCompileException {
-		return compiler.get().compile(coffee);
+		if (processWorkers != null) {
+			return processWorkers.compile(coffee);
+		}
+		if (dedicatedThreads != null) {
+			return dedicatedThreads.compile(coffee);
+		}
+		JCoffeeScriptCompiler compiler = pool.checkout();
+		try {
+			return compiler.compile(coffee);
+		} finally {
+			pool.checkin(compiler);
+		}
+	}
+
+	/*
+	 * Compiles every source, spread over up to maxCompilers workers (or workerProcesses, with worker JVMs).
+	 * Each worker enters a Rhino Context and borrows a compiler once for all the files it takes, rather than once per file.
+	 * Failures are reported per file. Results are in the same order as the sources.
+	 */
+	public Map<String, CompilationResult> compileAll(Map<String, Supplier<String>> sources) {
+		Queue<Map.Entry<String, Supplier<String>>> pending = new ConcurrentLinkedQueue<Map.Entry<String, Supplier<String>>>(sources.entrySet());
+		Map<String, CompilationResult> compiled = new ConcurrentHashMap<String, CompilationResult>();
+		List<BatchWorker> workers = Lists.newArrayList();
+		int concurrency = processWorkers != null ? processWorkers.getSize() : pool.getMaxSize();
+		for (int i = 0; i < Math.min(concurrency, sources.size()); i++) {
+			workers.add(new BatchWorker(pending, compiled));
+		}
+		RuntimeException workerFailure = runWorkers(workers);
+
+		Map<String, CompilationResult> results = Maps.newLinkedHashMap();
+		for (String path : sources.keySet()) {
+			CompilationResult result = compiled.get(path);
+			results.put(path, result != null ? result : CompilationResult.failure(path, workerFailure));
+		}
+		return results;
+	}
+
+	/*
+	 * Returns why a worker stopped early, if one did.
+	 */
+	private RuntimeException runWorkers(List<BatchWorker> workers) {
+		if (workers.isEmpty()) {
+			return null;
+		}
+		ExecutorService batchExecutor = null;
+		try {
+			List<Future<Void>> done;
+			if (dedicatedThreads != null) {
+				done = dedicatedThreads.invokeAll(workers);
+			} else {
+				batchExecutor = Executors.newFixedThreadPool(workers.size(),
+						new ThreadFactoryBuilder().setDaemon(true).setNameFormat("coffeescript-batch-%d").build());
+				done = batchExecutor.invokeAll(workers);
+			}
+			RuntimeException failure = null;
+			for (Future<Void> worker : done) {
+				try {
+					worker.get();
+				} catch (ExecutionException e) {
+					failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+				}
+			}
+			return failure;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new CompilerUnavailableException("Interrupted while waiting for a batch compile");
+		} finally {
+			if (batchExecutor != null) {
+				batchExecutor.shutdown();
+			}
+		}
+	}
+
+	private class BatchWorker implements Callable<Void> {
+		private final Queue<Map.Entry<String, Supplier<String>>> pending;
+		private final Map<String, CompilationResult> compiled;
+
+		BatchWorker(Queue<Map.Entry<String, Supplier<String>>> pending, Map<String, CompilationResult> compiled) {
+			this.pending = pending;
+			this.compiled = compiled;
+		}
+
+		public Void call() {
+			if (processWorkers != null) {
+				Map.Entry<String, Supplier<String>> source;
+				while ((source = pending.poll()) != null) {
+					compiled.put(source.getKey(), compile(null, source.getKey(), source.getValue()));
+				}
+				return null;
+			}
+			JCoffeeScriptCompiler.enterContext();
+			try {
+				JCoffeeScriptCompiler compiler = pool.checkout();
+				try {
+					Map.Entry<String, Supplier<String>> source;
+					while ((source = pending.poll()) != null) {
+						compiled.put(source.getKey(), compile(compiler, source.getKey(), source.getValue()));
+					}
+				} finally {
+					pool.checkin(compiler);
+				}
+			} finally {
+				Context.exit();
+			}
+			return null;
+		}
+
+		/*
+		 * A null compiler means the source goes to the worker JVMs.
+		 */
+		private CompilationResult compile(JCoffeeScriptCompiler compiler, String path, Supplier<String> source) {
+			String sourceCode = null;
+			try {
+				sourceCode = source.get();
+				return CompilationResult.success(path, compiler != null ? compiler.compile(sourceCode) : processWorkers.compile(sourceCode));
+			} catch (JCoffeeScriptCompileException e) {
+				return CompilationResult.failure(path, CachingCoffeeCompiler.compilationException(path, sourceCode, e));
+			} catch (RuntimeException e) {
+				return CompilationResult.failure(path, e);
+			}
+		}
+	}
+
+	/*
+	 * Starts creating and exercising every compiler in the background, see CompilerWarmup.
+	 */
+	public CompilerWarmup startWarmup() {
+		CompilerWarmup warmup = processWorkers != null
+				? new CompilerWarmup(this, null, processWorkers.getSize())
+				: new CompilerWarmup(this, pool, pool.getMaxSize());
+		warmup.start();
+		return warmup;
+	}
+
+	public CompilerPool getPool() {
+		return pool;
+	}
+
+	/*
+	 * Stops the dedicated compiler threads and worker JVMs, if any, and releases the pooled compilers.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+		if (dedicatedThreads != null) {
+			dedicatedThreads.shutdown();
+		}
+		if (processWorkers != null) {
+			processWorkers.shutdown();
+		}
 	}
-	
+
+	private static Supplier<JCoffeeScriptCompiler> compilerFactory(CompilerOptions compilerOptions) {
+		final boolean sharedScope = compilerOptions.sharedScope;
+		final File scopeSnapshotDirectory = compilerOptions.scopeSnapshotDirectory;
+		final CompileBudget budget = new CompileBudget(compilerOptions.maxCompileTime, compilerOptions.maxCompileTimeUnit,
+				compilerOptions.maxSourceLength);
+		return new Supplier<JCoffeeScriptCompiler>() {
+			public JCoffeeScriptCompiler get() {
+				JCoffeeScriptCompiler compiler;
+				if (sharedScope) {
+					compiler = JCoffeeScriptCompiler.withSharedScope(COMPILE_OPTIONS, scopeSnapshotDirectory);
+				} else {
+					compiler = new JCoffeeScriptCompiler(COMPILE_OPTIONS, scopeSnapshotDirectory);
+				}
+				compiler.setBudget(budget);
+				return compiler;
+			}
+		};
+	}
+
 }
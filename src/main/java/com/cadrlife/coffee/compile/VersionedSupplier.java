@@ -0,0 +1,21 @@
+package com.cadrlife.coffee.compile;
+
+import com.google.common.base.Supplier;
+
+/*
+ * A source supplier that can tell cheaply whether its source changed, for example from a file's
+ * last modified time and length. CachingCoffeeCompiler then only reads and hashes the source when
+ * the version differs from the one it last compiled.
+ */
+public interface VersionedSupplier extends Supplier<String> {
+	/*
+	 * Returns a token that changes whenever the source does, or null if that cannot be known.
+	 */
+	String getVersion();
+
+	/*
+	 * Returns when the source last changed, in milliseconds since the epoch, or 0 if that cannot be known.
+	 * Only asked for when the version has changed.
+	 */
+	long lastModified();
+}
@@ -0,0 +1,48 @@
+package com.cadrlife.coffee.jcoffeescript;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+
+/*
+ * Makes Contexts that report every few thousand interpreted instructions, so a compile that
+ * runs past its deadline can be stopped. Precompiled modules report too, because
+ * CoffeeScriptPrecompiler generates them with observer counting.
+ */
+class BudgetContextFactory extends ContextFactory {
+	private static final int INSTRUCTIONS_BETWEEN_CHECKS = 10000;
+	private static final Object DEADLINE = new Object();
+
+	static class BudgetExceededError extends Error {
+		private static final long serialVersionUID = 1L;
+	}
+
+	@Override
+	protected Context makeContext() {
+		Context context = super.makeContext();
+		context.setInstructionObserverThreshold(INSTRUCTIONS_BETWEEN_CHECKS);
+		return context;
+	}
+
+	@Override
+	protected void observeInstructionCount(Context context, int instructionCount) {
+		Long deadline = (Long) context.getThreadLocal(DEADLINE);
+		if (deadline != null && System.nanoTime() - deadline > 0) {
+			throw new BudgetExceededError();
+		}
+	}
+
+	/*
+	 * Returns false if the context was not made by this factory, in which case no deadline can be enforced.
+	 */
+	boolean startDeadline(Context context, long nanos) {
+		if (context.getFactory() != this) {
+			return false;
+		}
+		context.putThreadLocal(DEADLINE, System.nanoTime() + nanos);
+		return true;
+	}
+
+	void clearDeadline(Context context) {
+		context.removeThreadLocal(DEADLINE);
+	}
+}
@@ -0,0 +1,120 @@
+package com.cadrlife.coffee.jcoffeescript;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.Scriptable;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Resources;
+
+/*
+ * The bundled CoffeeScript compiler library.
+ * As a whole it is too big for Rhino to turn into bytecode, so normally it runs in the interpreter.
+ * CoffeeScriptPrecompiler can compile the modules it is made of into classes at build time, with
+ * gradle -PprecompileCoffeeScript; when those classes are on the classpath they are run instead, and only
+ * the modules that would not fit are interpreted. That only pays off for large sources: small ones compile
+ * faster interpreted, and the parser module is interpreted either way.
+ */
+class CoffeeScriptLibrary {
+	static final String NAME = "coffee-script-1.1.2.js";
+	static final String PATH = "com/cadrlife/coffee/" + NAME;
+	static final String PRECOMPILED_CLASS_PREFIX = "com.cadrlife.coffee.jcoffeescript.precompiled.CoffeeScriptModule";
+
+	private static final Pattern MODULE_START = Pattern.compile("require\\[\"[^\"]*\"\\]=new function");
+	private static final String LIBRARY_END = ";return require[\"./coffee-script\"]}()";
+
+	static String read() throws IOException {
+		return Resources.toString(Resources.getResource(CoffeeScriptLibrary.class, "/" + PATH), Charsets.UTF_8);
+	}
+
+	/*
+	 * Splits the library into standalone scripts that give the same result when run in order:
+	 * the require function, one script per module, then the assignment of the CoffeeScript global.
+	 */
+	static List<String> splitModules(String library) {
+		List<Integer> starts = Lists.newArrayList();
+		Matcher matcher = MODULE_START.matcher(library);
+		while (matcher.find()) {
+			starts.add(matcher.start());
+		}
+		int end = library.lastIndexOf(LIBRARY_END);
+		if (starts.isEmpty() || end < 0) {
+			throw new IllegalArgumentException("Unrecognized layout for " + NAME);
+		}
+		List<String> scripts = Lists.newArrayList();
+		scripts.add("function require(a){return require[a]}");
+		for (int i = 0; i < starts.size(); i++) {
+			// Modules are separated by commas in the original.
+			int moduleEnd = i + 1 < starts.size() ? starts.get(i + 1) - 1 : end;
+			scripts.add(library.substring(starts.get(i), moduleEnd));
+		}
+		scripts.add("this.CoffeeScript=require[\"./coffee-script\"]");
+		return scripts;
+	}
+
+	/*
+	 * Hex SHA-1 of the library text, whether precompiled modules are in use, and the given extra text.
+	 */
+	static String fingerprint(String extra) throws IOException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(read().getBytes(Charsets.UTF_8));
+			digest.update((hasPrecompiledModules() + "|" + extra).getBytes(Charsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest.digest()) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error(e); // Every JVM provides SHA-1
+		}
+	}
+
+	static boolean hasPrecompiledModules() {
+		return loadPrecompiled(0, CoffeeScriptLibrary.class.getClassLoader()) != null;
+	}
+
+	static void evaluate(Context context, Scriptable scope) throws IOException {
+		evaluate(context, scope, CoffeeScriptLibrary.class.getClassLoader());
+	}
+
+	/*
+	 * Evaluates the library using the precompiled modules the class loader has, if any.
+	 */
+	static void evaluate(Context context, Scriptable scope, ClassLoader precompiledClasses) throws IOException {
+		String library = read();
+		if (loadPrecompiled(0, precompiledClasses) == null) {
+			context.evaluateString(scope, library, NAME, 0, null);
+			return;
+		}
+		List<String> modules = splitModules(library);
+		for (int i = 0; i < modules.size(); i++) {
+			Script precompiled = loadPrecompiled(i, precompiledClasses);
+			if (precompiled != null) {
+				precompiled.exec(context, scope);
+			} else {
+				context.evaluateString(scope, modules.get(i), NAME, 0, null);
+			}
+		}
+	}
+
+	private static Script loadPrecompiled(int module, ClassLoader classLoader) {
+		try {
+			return (Script) Class.forName(PRECOMPILED_CLASS_PREFIX + module, true, classLoader).newInstance();
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (InstantiationException e) {
+			throw new Error(e);
+		} catch (IllegalAccessException e) {
+			throw new Error(e);
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package com.cadrlife.coffee.jcoffeescript;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.optimizer.ClassCompiler;
+
+import com.google.common.io.Files;
+
+/*
+ * Build step that compiles the modules of the bundled CoffeeScript library into Java classes at
+ * optimization level 9, so JCoffeeScriptCompiler can run them as bytecode rather than interpret them.
+ * Modules that still exceed the JVM's 64K method limit (the generated parser tables) are skipped
+ * and stay interpreted. Run by the precompileCoffeeScript Gradle task, with gradle -PprecompileCoffeeScript.
+ * 
+ * Usage: CoffeeScriptPrecompiler <classes output directory>
+ */
+public class CoffeeScriptPrecompiler {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("Usage: CoffeeScriptPrecompiler <classes output directory>");
+			System.exit(1);
+		}
+		new CoffeeScriptPrecompiler().precompile(new File(args[0]));
+	}
+
+	public void precompile(File outputDirectory) throws IOException {
+		CompilerEnvirons environment = new CompilerEnvirons();
+		environment.setOptimizationLevel(9);
+		// Lets compile budgets interrupt precompiled code too.
+		environment.setGenerateObserverCount(true);
+		ClassCompiler classCompiler = new ClassCompiler(environment);
+		List<String> modules = CoffeeScriptLibrary.splitModules(CoffeeScriptLibrary.read());
+		for (int i = 0; i < modules.size(); i++) {
+			String className = CoffeeScriptLibrary.PRECOMPILED_CLASS_PREFIX + i;
+			try {
+				Object[] classFiles = classCompiler.compileToClassFiles(modules.get(i), CoffeeScriptLibrary.NAME, 1, className);
+				for (int j = 0; j < classFiles.length; j += 2) {
+					writeClass(outputDirectory, (String) classFiles[j], (byte[]) classFiles[j + 1]);
+				}
+			} catch (EvaluatorException e) {
+				System.out.println("Module " + i + " of " + CoffeeScriptLibrary.NAME + " left interpreted: " + e.getMessage());
+			}
+		}
+	}
+
+	private void writeClass(File outputDirectory, String className, byte[] bytes) throws IOException {
+		File classFile = new File(outputDirectory, className.replace('.', File.separatorChar) + ".class");
+		Files.createParentDirs(classFile);
+		Files.write(bytes, classFile);
+	}
+}
@@ -0,0 +1,35 @@
+package com.cadrlife.coffee.jcoffeescript;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Limits on a single compile: the longest source accepted and the time a compile may run.
+ * Zero means unlimited.
+ */
+public class CompileBudget {
+	public static final CompileBudget UNLIMITED = new CompileBudget(0, TimeUnit.MILLISECONDS, 0);
+
+	private final long maxTimeNanos;
+	private final int maxSourceLength;
+
+	public CompileBudget(long maxTime, TimeUnit maxTimeUnit, int maxSourceLength) {
+		this.maxTimeNanos = maxTimeUnit.toNanos(maxTime);
+		this.maxSourceLength = maxSourceLength;
+	}
+
+	public long getMaxTime(TimeUnit unit) {
+		return unit.convert(maxTimeNanos, TimeUnit.NANOSECONDS);
+	}
+
+	public int getMaxSourceLength() {
+		return maxSourceLength;
+	}
+
+	boolean isTimeLimited() {
+		return maxTimeNanos > 0;
+	}
+
+	boolean allowsSourceLength(int length) {
+		return maxSourceLength <= 0 || length <= maxSourceLength;
+	}
+}
@@ -0,0 +1,14 @@
+package com.cadrlife.coffee.jcoffeescript;
+
+/**
+ * Thrown when a source is too long to compile, or its compile ran longer than the {@link CompileBudget} allows.
+ */
+public class JCoffeeScriptBudgetExceededException extends JCoffeeScriptCompileException {
+
+	private static final long serialVersionUID = 1L;
+
+	public JCoffeeScriptBudgetExceededException(String message) {
+		super(message);
+	}
+
+}
@@ -26,4 +26,8 @@ public class JCoffeeScriptCompileException extends Exception {
         super(e.getValue().toString(), e);
     }
 
+    public JCoffeeScriptCompileException (String message) {
+        super(message);
+    }
+
 }
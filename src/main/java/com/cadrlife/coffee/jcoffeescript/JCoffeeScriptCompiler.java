@@ -17,67 +17,151 @@
 package com.cadrlife.coffee.jcoffeescript;
 
 import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
 import org.mozilla.javascript.JavaScriptException;
+import org.mozilla.javascript.NativeObject;
 import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
-import java.io.UnsupportedEncodingException;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.concurrent.TimeUnit;
 
 public class JCoffeeScriptCompiler {
 
+    private static final BudgetContextFactory contextFactory = new BudgetContextFactory();
+    private static final Object sharedScopeLock = new Object();
+    private static Scriptable sharedGlobalScope;
+
     private final Scriptable globalScope;
-    private final Options options;
+    private final Scriptable coffeeScript;
+    private final Function compileFunction;
+    private final Scriptable optionsObject;
+    private volatile CompileBudget budget = CompileBudget.UNLIMITED;
 
 	 public JCoffeeScriptCompiler() {
         this(Collections.<Option>emptyList());
     }
 
 	public JCoffeeScriptCompiler(Collection<Option> options) {
-        ClassLoader classLoader = getClass().getClassLoader();
-        InputStream inputStream = classLoader.getResourceAsStream("com/cadrlife/coffee/coffee-script-1.1.2.js");
+        this(options, (File) null);
+    }
+
+    /**
+     * @param scopeSnapshotDirectory where to keep a serialized copy of the initialized library scope, so later
+     *        compilers restore it instead of evaluating the library again. May be null to always evaluate.
+     */
+    public JCoffeeScriptCompiler(Collection<Option> options, File scopeSnapshotDirectory) {
+        this(options, loadGlobalScope(false, scopeSnapshotDirectory));
+    }
+
+    private JCoffeeScriptCompiler(Collection<Option> options, Scriptable globalScope) {
+        this.globalScope = globalScope;
+        this.coffeeScript = (Scriptable) ScriptableObject.getProperty(globalScope, "CoffeeScript");
+        this.compileFunction = (Function) ScriptableObject.getProperty(coffeeScript, "compile");
+        this.optionsObject = new Options(options).toScriptable(globalScope);
+    }
+
+    /**
+     * Returns a compiler backed by a sealed CoffeeScript scope that is evaluated once and then shared by every
+     * compiler created through this method, so creating one costs next to nothing.
+     * The CoffeeScript library keeps its lexer and parser state in module-level objects, so compiles
+     * against the shared scope run one at a time.
+     */
+    public static JCoffeeScriptCompiler withSharedScope(Collection<Option> options) {
+        return withSharedScope(options, null);
+    }
+
+    /**
+     * Like {@link #withSharedScope(Collection)}, restoring the shared scope from a snapshot in
+     * scopeSnapshotDirectory if it has not been loaded yet.
+     */
+    public static JCoffeeScriptCompiler withSharedScope(Collection<Option> options, File scopeSnapshotDirectory) {
+        synchronized (sharedScopeLock) {
+            if (sharedGlobalScope == null) {
+                sharedGlobalScope = loadGlobalScope(true, scopeSnapshotDirectory);
+            }
+            return new JCoffeeScriptCompiler(options, sharedGlobalScope);
+        }
+    }
+
+    /**
+     * Enters a Context from the factory the compiler uses, for callers that run several compiles on one thread
+     * and want to enter only once. Compile budgets are only enforced in these Contexts. Pair with {@link Context#exit()}.
+     */
+    public static Context enterContext() {
+        return contextFactory.enterContext();
+    }
+
+    /**
+     * Returns a hash of the bundled CoffeeScript library, for keying stored compiler output so that it
+     * is not reused once the library changes.
+     */
+    public static String libraryFingerprint() throws IOException {
+        return CoffeeScriptLibrary.fingerprint("");
+    }
+
+    private static Scriptable loadGlobalScope(boolean sealed, File scopeSnapshotDirectory) {
+        Context context = enterContext();
+        context.setOptimizationLevel(-1); // Without this, Rhino hits a 64K bytecode limit and fails
         try {
-            try {
-                Reader reader = new InputStreamReader(inputStream, "UTF-8");
-                try {
-                    Context context = Context.enter();
-                    context.setOptimizationLevel(-1); // Without this, Rhino hits a 64K bytecode limit and fails
-                    try {
-                        globalScope = context.initStandardObjects();
-                        context.evaluateReader(globalScope, reader, "coffee-script-1.1.2.js", 0, null);
-                    } finally {
-                        Context.exit();
-                    }
-                } finally {
-                    reader.close();
+            ScriptableObject scope = context.initStandardObjects(null, sealed);
+            if (scopeSnapshotDirectory == null) {
+                CoffeeScriptLibrary.evaluate(context, scope);
+            } else {
+                ScopeSnapshot snapshot = new ScopeSnapshot(scopeSnapshotDirectory, context);
+                if (!snapshot.restore(scope)) {
+                    CoffeeScriptLibrary.evaluate(context, scope);
+                    snapshot.save(scope);
                 }
-            } catch (UnsupportedEncodingException e) {
-                throw new Error(e); // This should never happen
-            } finally {
-                inputStream.close();
             }
+            if (sealed) {
+                scope.sealObject();
+            }
+            return scope;
         } catch (IOException e) {
             throw new Error(e); // This should never happen
+        } finally {
+            Context.exit();
         }
+    }
 
-        this.options = new Options(options);
+    public void setBudget(CompileBudget budget) {
+        this.budget = budget;
     }
 
 	public String compile (String coffeeScriptSource) throws JCoffeeScriptCompileException {
-        Context context = Context.enter();
+        CompileBudget budget = this.budget;
+        if (!budget.allowsSourceLength(coffeeScriptSource.length())) {
+            throw new JCoffeeScriptBudgetExceededException("Source is " + coffeeScriptSource.length()
+                    + " characters long, the limit is " + budget.getMaxSourceLength());
+        }
+        Context context = enterContext();
         try {
-            Scriptable compileScope = context.newObject(globalScope);
-            compileScope.setParentScope(globalScope);
-            compileScope.put("coffeeScriptSource", compileScope, coffeeScriptSource);
-            try {
-                return (String)context.evaluateString(compileScope, String.format("CoffeeScript.compile(coffeeScriptSource, %s);", options.toJavaScript()),
-                        "JCoffeeScriptCompiler", 0, null);
-            } catch (JavaScriptException e) {
-                throw new JCoffeeScriptCompileException(e);
+            // CoffeeScript writes its working state into the options it is given, so each call
+            // gets a fresh object that inherits the prebuilt options.
+            Scriptable compileOptions = new NativeObject();
+            compileOptions.setPrototype(optionsObject);
+            compileOptions.setParentScope(globalScope);
+            // The library is not reentrant, only one compile may run against a scope at a time.
+            synchronized (globalScope) {
+                // Started once the scope is ours, so time spent queued behind other compiles does not count.
+                boolean timed = budget.isTimeLimited() && contextFactory.startDeadline(context, budget.getMaxTime(TimeUnit.NANOSECONDS));
+                try {
+                    return Context.toString(compileFunction.call(context, globalScope, coffeeScript,
+                            new Object[] {coffeeScriptSource, compileOptions}));
+                } catch (JavaScriptException e) {
+                    throw new JCoffeeScriptCompileException(e);
+                } catch (BudgetContextFactory.BudgetExceededError e) {
+                    throw new JCoffeeScriptBudgetExceededException("Compile took longer than "
+                            + budget.getMaxTime(TimeUnit.MILLISECONDS) + "ms");
+                } finally {
+                    if (timed) {
+                        contextFactory.clearDeadline(context);
+                    }
+                }
             }
         } finally {
             Context.exit();
@@ -18,15 +18,28 @@ package com.cadrlife.coffee.jcoffeescript;
 
 import java.util.Collection;
 
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
 
 public class Options {
+    private final boolean bare;
     private final String javaScriptOptions;
 
     public Options(Collection<Option> options) {
-        javaScriptOptions = String.format("{bare: %b}", options.contains(Option.BARE));
+        bare = options.contains(Option.BARE);
+        javaScriptOptions = String.format("{bare: %b}", bare);
     }
 
     public String toJavaScript() {
         return javaScriptOptions;
     }
+
+    public Scriptable toScriptable(Scriptable scope) {
+        Scriptable object = new NativeObject();
+        object.setPrototype(ScriptableObject.getObjectPrototype(scope));
+        object.setParentScope(scope);
+        object.put("bare", object, bare);
+        return object;
+    }
 }
\ No newline at end of file
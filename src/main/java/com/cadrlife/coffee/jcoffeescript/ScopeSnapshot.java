@@ -0,0 +1,105 @@
+package com.cadrlife.coffee.jcoffeescript;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.serialize.ScriptableInputStream;
+import org.mozilla.javascript.serialize.ScriptableOutputStream;
+
+import com.google.common.io.Closeables;
+
+/*
+ * On-disk copy of the CoffeeScript object after the library has been evaluated, written with Rhino's
+ * scope serialization. Restoring it is much cheaper than evaluating coffee-script-1.1.2.js again.
+ * The file name carries a hash of the library, the Rhino version and whether precompiled modules were used,
+ * so a snapshot is never restored into a different setup. Unreadable snapshots are ignored and rewritten.
+ */
+class ScopeSnapshot {
+	private static final String[] STANDARD_OBJECTS = {"Object", "Function", "Error", "String", "Number",
+		"Boolean", "RegExp", "Array", "Date", "Math", "JSON"};
+
+	private final File file;
+
+	ScopeSnapshot(File directory, Context context) throws IOException {
+		this.file = new File(directory, "coffee-script-scope-" + CoffeeScriptLibrary.fingerprint(context.getImplementationVersion()) + ".ser");
+	}
+
+	/*
+	 * Puts the snapshotted CoffeeScript object into the scope. Returns false if there is no usable snapshot.
+	 */
+	boolean restore(ScriptableObject scope) {
+		if (!file.isFile()) {
+			return false;
+		}
+		ScriptableInputStream in = null;
+		try {
+			in = new ScriptableInputStream(new BufferedInputStream(new FileInputStream(file)), scope);
+			scope.put("CoffeeScript", scope, in.readObject());
+			return true;
+		} catch (Exception e) {
+			System.err.println("Ignoring unreadable CoffeeScript scope snapshot " + file + ": " + e);
+			scope.delete("CoffeeScript");
+			return false;
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+	}
+
+	/*
+	 * Writes the CoffeeScript object of an evaluated scope. Written to a temporary file first and renamed,
+	 * so concurrent readers never see a partial snapshot.
+	 */
+	void save(ScriptableObject scope) {
+		File temp = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+		ScriptableOutputStream out = null;
+		boolean saved = false;
+		try {
+			file.getParentFile().mkdirs();
+			out = new ScriptableOutputStream(new BufferedOutputStream(new FileOutputStream(temp)), scope);
+			excludeBuiltInFunctions(out, scope);
+			out.writeObject(ScriptableObject.getProperty(scope, "CoffeeScript"));
+			out.close();
+			saved = temp.renameTo(file);
+		} catch (IOException e) {
+			System.err.println("Could not write CoffeeScript scope snapshot " + file + ": " + e);
+		} finally {
+			Closeables.closeQuietly(out);
+			if (!saved) {
+				temp.delete();
+			}
+		}
+	}
+
+	/*
+	 * The library keeps references to built-ins such as Array.prototype.slice. Those have to be
+	 * written as references to the standard objects of the restoring scope, not as copies.
+	 */
+	private void excludeBuiltInFunctions(ScriptableOutputStream out, Scriptable scope) {
+		for (String name : STANDARD_OBJECTS) {
+			Object constructor = ScriptableObject.getProperty(scope, name);
+			if (constructor instanceof ScriptableObject) {
+				excludeFunctions(out, (ScriptableObject) constructor, name);
+				Object prototype = ScriptableObject.getProperty((Scriptable) constructor, "prototype");
+				if (prototype instanceof ScriptableObject) {
+					excludeFunctions(out, (ScriptableObject) prototype, name + ".prototype");
+				}
+			}
+		}
+	}
+
+	private void excludeFunctions(ScriptableOutputStream out, ScriptableObject object, String name) {
+		for (Object id : object.getAllIds()) {
+			if (id instanceof String && ScriptableObject.getProperty(object, (String) id) instanceof Function) {
+				out.addExcludedName(name + "." + id);
+			}
+		}
+	}
+}
@@ -0,0 +1,280 @@
+package com.cadrlife.coffee;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.CharStreams;
+import com.google.common.io.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CoffeeFilterTest {
+	private static final String ETAG = "\"abc\"";
+	File source;
+	FilterConfig filterConfig;
+	CoffeeFilter filter;
+	ByteArrayOutputStream body;
+
+	@Before
+	public void setup() throws Exception {
+		source = File.createTempFile("app", ".coffee");
+		Files.write("square = (x) -> x * x\n" + Strings.repeat("alert square 2\n", 50), source, Charsets.UTF_8);
+		ServletContext servletContext = mock(ServletContext.class);
+		when(servletContext.getContextPath()).thenReturn("/ctx");
+		when(servletContext.getResource("/WEB-INF/js/app.coffee")).thenReturn(source.toURI().toURL());
+		filterConfig = mock(FilterConfig.class);
+		when(filterConfig.getServletContext()).thenReturn(servletContext);
+		when(filterConfig.getInitParameter("coffeeFiles")).thenReturn("/WEB-INF/js/*.coffee");
+		when(filterConfig.getInitParameter("compilerWarmup")).thenReturn("false");
+		when(filterConfig.getInitParameter("maxCompilers")).thenReturn("1");
+		filter = new CoffeeFilter();
+		filter.init(filterConfig);
+		body = new ByteArrayOutputStream();
+	}
+
+	@After
+	public void cleanup() {
+		filter.destroy();
+		source.delete();
+	}
+
+	@Test
+	public void shouldCacheCurrentFingerprintForGood() throws Exception {
+		String fingerprinted = filter.fingerprintedPath("/js/app.js");
+		assertTrue(fingerprinted, fingerprinted.matches("/js/app-[0-9a-f]{12}\\.js"));
+		assertEquals("/js/other.js", filter.fingerprintedPath("/js/other.js"));
+
+		HttpServletResponse response = get("/ctx" + fingerprinted);
+		verify(response).setHeader("Cache-Control", "public, max-age=31536000, immutable");
+		assertTrue(body.toString("UTF-8").contains("square = function(x)"));
+	}
+
+	@Test
+	public void shouldSendExactContentLength() throws Exception {
+		HttpServletResponse response = get("/ctx/js/app.js");
+		verify(response).setContentType("text/javascript;charset=UTF-8");
+		verify(response).setContentLength(body.size());
+		verify(response, never()).setHeader("Content-Encoding", "gzip");
+	}
+
+	@Test
+	public void shouldServeOutdatedFingerprintWithoutLongCaching() throws Exception {
+		HttpServletResponse response = get("/ctx/js/app-000000000000.js");
+		verify(response, never()).setHeader("Cache-Control", "public, max-age=31536000, immutable");
+		assertTrue(body.toString("UTF-8").contains("square = function(x)"));
+	}
+
+	@Test
+	public void shouldSendLastModifiedFromTheLastVersionCheck() throws Exception {
+		source.setLastModified(1262304000000L);
+		verify(get("/ctx/js/app.js")).setDateHeader("Last-Modified", 1262304000000L);
+		verify(get("/ctx/js/app.js")).setDateHeader("Last-Modified", 1262304000000L);
+	}
+
+	@Test
+	public void shouldOnlyAnswerNotModifiedFromOutputKnownToBeCurrent() throws Exception {
+		HttpServletRequest request = request("/ctx/js/app.js");
+		when(request.getDateHeader("If-Modified-Since")).thenReturn(System.currentTimeMillis() + 60000);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		filter.doFilter(request, response, mock(FilterChain.class));
+		// Compiled first, so the answer carries the validators of the output it vouches for.
+		assertTrue(eTagOf(response).startsWith("\"" + filter.fingerprintedPath("/js/app.js").substring(8, 20)));
+		verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+	}
+
+	@Test
+	public void shouldAnswerMatchingETagWithoutBody() throws Exception {
+		String eTag = eTagOf(get("/ctx/js/app.js"));
+		assertTrue(eTag.startsWith("\"" + filter.fingerprintedPath("/js/app.js").substring(8, 20)));
+		HttpServletRequest request = request("/ctx/js/app.js");
+		when(request.getHeader("If-None-Match")).thenReturn(eTag);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		filter.doFilter(request, response, mock(FilterChain.class));
+		verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+		verify(response, never()).getOutputStream();
+	}
+
+	@Test
+	public void shouldSendGzippedCopyToClientsThatAcceptIt() throws Exception {
+		filter.destroy();
+		when(filterConfig.getInitParameter("compiledCacheGzip")).thenReturn("true");
+		filter = new CoffeeFilter();
+		filter.init(filterConfig);
+		HttpServletRequest request = request("/ctx/js/app.js");
+		when(request.getHeader("Accept-Encoding")).thenReturn("deflate, gzip;q=0.8");
+		HttpServletResponse response = get(request);
+		verify(response).setHeader("Content-Encoding", "gzip");
+		verify(response).setContentLength(body.size());
+		verify(response).setHeader("Vary", "Accept-Encoding");
+		assertTrue(eTagOf(response).endsWith("-gzip\""));
+		GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(body.toByteArray()));
+		assertTrue(CharStreams.toString(new InputStreamReader(in, Charsets.UTF_8)).contains("square = function(x)"));
+	}
+
+	@Test
+	public void shouldNotGzipUnlessEnabled() throws Exception {
+		HttpServletRequest request = request("/ctx/js/app.js");
+		when(request.getHeader("Accept-Encoding")).thenReturn("gzip");
+		HttpServletResponse response = get(request);
+		verify(response, never()).setHeader("Content-Encoding", "gzip");
+		assertTrue(body.toString("UTF-8").contains("square = function(x)"));
+	}
+
+	@Test
+	public void shouldNegotiateGzip() {
+		assertTrue(CoffeeFilter.acceptsGzip(acceptEncoding("gzip, deflate")));
+		assertTrue(CoffeeFilter.acceptsGzip(acceptEncoding("br;q=1.0, X-GZIP")));
+		assertFalse(CoffeeFilter.acceptsGzip(acceptEncoding("gzip;q=0, deflate")));
+		assertFalse(CoffeeFilter.acceptsGzip(acceptEncoding("gzip; q=0.00")));
+		assertFalse(CoffeeFilter.acceptsGzip(acceptEncoding("identity")));
+		assertFalse(CoffeeFilter.acceptsGzip(acceptEncoding(null)));
+	}
+
+	@Test
+	public void shouldCompileSynchronouslyWithoutServlet3() throws Exception {
+		filter.destroy();
+		when(filterConfig.getInitParameter("asyncCompiles")).thenReturn("true");
+		filter = new CoffeeFilter();
+		filter.init(filterConfig);
+		HttpServletRequest request = request("/ctx/js/app.js");
+		assertFalse(AsyncRequests.isSupported(request));
+		get(request);
+		assertTrue(body.toString("UTF-8").contains("square = function(x)"));
+	}
+
+	@Test
+	public void shouldAnswerFromTheCompilingThreadWithServlet3() throws Exception {
+		filter.destroy();
+		when(filterConfig.getInitParameter("asyncCompiles")).thenReturn("true");
+		filter = new CoffeeFilter();
+		filter.init(filterConfig);
+		AsyncRequest request = mock(AsyncRequest.class);
+		when(request.getRequestURI()).thenReturn("/ctx/js/app.js");
+		when(request.getDateHeader(anyString())).thenReturn(-1L);
+		when(request.isAsyncSupported()).thenReturn(true);
+		AsyncContext asyncContext = new AsyncContext();
+		when(request.startAsync(Matchers.same(request), Matchers.any(ServletResponse.class))).thenReturn(asyncContext);
+		assertTrue(AsyncRequests.isSupported(request));
+		HttpServletResponse response = get(request);
+		assertTrue(asyncContext.completed.await(30, TimeUnit.SECONDS));
+		assertEquals(0, asyncContext.timeout);
+		verify(response).setContentLength(body.size());
+		assertTrue(body.toString("UTF-8").contains("square = function(x)"));
+	}
+
+	@Test
+	public void matchingETagIsNotModified() {
+		assertTrue(CoffeeFilter.isNotModified(request("\"x\", \"abc\"", -1), ETAG, 0));
+		assertTrue(CoffeeFilter.isNotModified(request("W/\"abc\"", -1), ETAG, 0));
+		assertTrue(CoffeeFilter.isNotModified(request("*", -1), ETAG, 0));
+		assertFalse(CoffeeFilter.isNotModified(request("\"x\"", -1), ETAG, 0));
+	}
+
+	@Test
+	public void ifNoneMatchTakesPrecedenceOverIfModifiedSince() {
+		assertFalse(CoffeeFilter.isNotModified(request("\"x\"", 5000), ETAG, 5000));
+		assertFalse(CoffeeFilter.isNotModified(request("\"abc\"", 5000), null, 5000));
+	}
+
+	@Test
+	public void unmodifiedSinceIsNotModifiedToTheSecond() {
+		assertTrue(CoffeeFilter.isNotModified(request(null, 5000), ETAG, 5999));
+		assertFalse(CoffeeFilter.isNotModified(request(null, 5000), ETAG, 6000));
+		assertFalse(CoffeeFilter.isNotModified(request(null, 5000), ETAG, 0));
+		assertFalse(CoffeeFilter.isNotModified(request(null, -1), ETAG, 5000));
+	}
+
+	/*
+	 * A request as a Servlet 3 container provides it, where the Servlet API on the class path is 2.5.
+	 */
+	public abstract static class AsyncRequest implements HttpServletRequest {
+		public abstract boolean isAsyncSupported();
+
+		public abstract Object startAsync(ServletRequest request, ServletResponse response);
+	}
+
+	public static class AsyncContext {
+		final CountDownLatch completed = new CountDownLatch(1);
+		volatile long timeout = -1;
+
+		public void setTimeout(long timeout) {
+			this.timeout = timeout;
+		}
+
+		public void complete() {
+			completed.countDown();
+		}
+	}
+
+	private HttpServletResponse get(String uri) throws Exception {
+		return get(request(uri));
+	}
+
+	private HttpServletResponse get(HttpServletRequest request) throws Exception {
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				body.write(b);
+			}
+		});
+		filter.doFilter(request, response, mock(FilterChain.class));
+		return response;
+	}
+
+	private static HttpServletRequest request(String uri) {
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getRequestURI()).thenReturn(uri);
+		when(request.getDateHeader(anyString())).thenReturn(-1L);
+		return request;
+	}
+
+	private static String eTagOf(HttpServletResponse response) {
+		ArgumentCaptor<String> eTag = ArgumentCaptor.forClass(String.class);
+		verify(response).setHeader(Matchers.eq("ETag"), eTag.capture());
+		return eTag.getValue();
+	}
+
+	private static HttpServletRequest acceptEncoding(String acceptEncoding) {
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getHeader("Accept-Encoding")).thenReturn(acceptEncoding);
+		return request;
+	}
+
+	private static HttpServletRequest request(String ifNoneMatch, long ifModifiedSince) {
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getHeader("If-None-Match")).thenReturn(ifNoneMatch);
+		when(request.getDateHeader("If-Modified-Since")).thenReturn(ifModifiedSince);
+		return request;
+	}
+}
@@ -1,8 +1,18 @@
 package com.cadrlife.coffee;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
 
 import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
 import static org.junit.Assert.*;
 public class VirtualFileTest {
 	@Test
@@ -10,4 +20,60 @@ public class VirtualFileTest {
 		VirtualFile file = VirtualFile.fromFile(new File("/a/b/c/file"));
 		assertEquals("file", file.getName());
 	}
+
+	@Test
+	public void versionFollowsFileChanges() throws Exception {
+		File temp = File.createTempFile("virtual", ".coffee");
+		try {
+			Files.write("a = 1", temp, Charsets.UTF_8);
+			temp.setLastModified(1000000);
+			VirtualFile file = VirtualFile.fromFile(temp);
+			VirtualFile url = VirtualFile.fromURL("/virtual.coffee", temp.toURI().toURL());
+			assertEquals(5, file.length());
+			assertEquals(1000000, url.lastModified());
+			assertEquals(file.getVersion(), url.getVersion());
+			String before = url.getVersion();
+			Files.write("a = 12", temp, Charsets.UTF_8);
+			assertFalse(before.equals(url.getVersion()));
+		} finally {
+			temp.delete();
+		}
+	}
+
+	@Test
+	public void jarEntryVersionComesFromTheArchiveDirectory() throws Exception {
+		File jar = File.createTempFile("virtual", ".jar");
+		try {
+			JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+			JarEntry entry = new JarEntry("js/app.coffee");
+			entry.setTime(1262304000000L);
+			out.putNextEntry(entry);
+			out.write("a = 1".getBytes(Charsets.UTF_8));
+			out.close();
+			VirtualFile url = VirtualFile.fromURL("/app.coffee", new URL("jar:" + jar.toURI() + "!/js/app.coffee"));
+			assertEquals(1262304000000L, url.lastModified());
+			assertEquals(5, url.length());
+			assertEquals("a = 1", url.readToString());
+		} finally {
+			jar.delete();
+		}
+	}
+
+	@Test
+	public void missingFileHasNoVersion() throws Exception {
+		assertNull(VirtualFile.fromFile(new File("/no/such/file.coffee")).getVersion());
+	}
+
+	@Test
+	public void subclassOnlyOpeningStreamsHasNoVersion() throws Exception {
+		VirtualFile file = new VirtualFile("/a/file.coffee") {
+			@Override
+			public InputStream openInputStream() {
+				return new ByteArrayInputStream(new byte[0]);
+			}
+		};
+		assertEquals(0, file.lastModified());
+		assertEquals(-1, file.length());
+		assertNull(file.getVersion());
+	}
 }
@@ -1,20 +1,43 @@
 package com.cadrlife.coffee.compile;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
+import org.mockito.Matchers;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
+import com.cadrlife.coffee.jcoffeescript.JCoffeeScriptCompileException;
 import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(MockitoJUnitRunner.class)
 public class CachingCoffeeCompilerTest {
@@ -53,16 +76,448 @@ public class CachingCoffeeCompilerTest {
 		verify(compiler, times(1)).compile("coffee1");
 		verify(compiler, never()).compile("coffee2");
 		verify(sourceSupplier1, times(1)).get();
-		verify(sourceSupplier2, never()).get();
+		verify(sourceSupplier2, times(1)).get();
 	}
 	
 	@Test
-	public void recompileOnFilenameChange() throws Exception {
+	public void shouldShareCompiledSourceAcrossFilenames() throws Exception {
 		when(compiler.compile("coffee")).thenReturn("js");
 		assertEquals("js", cachingCompiler.compile("uri", "coffee"));
 		assertEquals("js", cachingCompiler.compile("uri2", "coffee"));
 		assertEquals("js", cachingCompiler.compile("uri2", "coffee"));
-		verify(compiler, times(2)).compile("coffee");
+		verify(compiler, times(1)).compile("coffee");
+	}
+	
+	@Test
+	public void recompileOnSourceChange() throws Exception {
+		assertEquals("js1", cachingCompiler.compile("uri", "coffee1"));
+		assertEquals("js2", cachingCompiler.compile("uri", "coffee2"));
+		assertEquals("js2", cachingCompiler.compile("uri", "coffee2"));
+		verify(compiler, times(1)).compile("coffee1");
+		verify(compiler, times(1)).compile("coffee2");
+	}
+	
+	@Test
+	public void shouldDropOutputOfReplacedSourceOnlyWhenNoOtherFileHasIt() throws Exception {
+		cachingCompiler.compile("uri", "coffee1");
+		cachingCompiler.compile("uri2", "coffee1");
+		cachingCompiler.compile("uri", "coffee2");
+		cachingCompiler.compile("uri3", "coffee1");
+		verify(compiler, times(1)).compile("coffee1");
+		cachingCompiler.compile("uri2", "coffee2");
+		cachingCompiler.compile("uri3", "coffee2");
+		cachingCompiler.compile("uri4", "coffee1");
+		verify(compiler, times(2)).compile("coffee1");
+	}
+	
+	@Test
+	public void shouldEvictByWeightOfCompiledOutput() throws Exception {
+		CachingCoffeeCompiler.CacheOptions options = new CachingCoffeeCompiler.CacheOptions();
+		options.maxWeightBytes = 3 * CompiledOutput.onHeap("jsN", false).getWeightBytes();
+		when(compiler.compile("coffee3")).thenReturn("js3");
+		when(compiler.compile("coffee4")).thenReturn("js4");
+		CachingCoffeeCompiler weighted = new CachingCoffeeCompiler(options, compiler);
+		weighted.compile("uri1", "coffee1");
+		weighted.compile("uri2", "coffee2");
+		weighted.compile("uri3", "coffee3");
+		weighted.compile("uri1", "coffee1");
+		weighted.compile("uri4", "coffee4");
+		assertEquals(3, weighted.getSize());
+		assertEquals(options.maxWeightBytes, weighted.getWeightBytes());
+		weighted.compile("uri1", "coffee1");
+		weighted.compile("uri2", "coffee2");
+		verify(compiler, times(1)).compile("coffee1");
+		verify(compiler, times(2)).compile("coffee2");
+	}
+	
+	@Test
+	public void shouldNotCountOutputInvalidatedBeforeItsAccessIsRecorded() throws Exception {
+		CompilationCacheWeights weights = new CompilationCacheWeights(0);
+		CompilationCacheContentKey key = new CompilationCacheContentKey("uri1", "coffee1", "");
+		CompiledOutput output = CompiledOutput.onHeap("js1", false);
+		weights.accessed(key, output, ImmutableMap.of());
+		assertEquals(0, weights.getTotalBytes());
+		weights.accessed(key, output, ImmutableMap.of(key, output));
+		assertEquals(output.getWeightBytes(), weights.getTotalBytes());
+		weights.removed(key);
+		assertEquals(0, weights.getTotalBytes());
+	}
+	
+	@Test
+	public void shouldRememberCompilationFailures() throws Exception {
+		when(compiler.compile("broken")).thenThrow(new JCoffeeScriptCompileException("Parse error on line 1"));
+		UncheckedExecutionException first = compileFailure(cachingCompiler, "broken");
+		UncheckedExecutionException second = compileFailure(cachingCompiler, "broken");
+		assertSame(first.getCause(), second.getCause());
+		assertEquals(Integer.valueOf(1), ((CompilationException) second.getCause()).getLineNumber());
+		verify(compiler, times(1)).compile("broken");
+	}
+	
+	@Test
+	public void shouldRetryFailuresWhenNotCached() throws Exception {
+		CachingCoffeeCompiler.CacheOptions options = new CachingCoffeeCompiler.CacheOptions();
+		options.failureCacheTime = 0;
+		CachingCoffeeCompiler uncachedFailures = new CachingCoffeeCompiler(options, compiler);
+		when(compiler.compile("broken")).thenThrow(new JCoffeeScriptCompileException("Parse error on line 1"));
+		compileFailure(uncachedFailures, "broken");
+		compileFailure(uncachedFailures, "broken");
+		verify(compiler, times(2)).compile("broken");
+	}
+	
+	@Test
+	public void shouldNotRereadSourceWhileVersionIsUnchanged() throws Exception {
+		CachingCoffeeCompiler.CacheOptions options = new CachingCoffeeCompiler.CacheOptions();
+		options.versionCheckInterval = 0;
+		CachingCoffeeCompiler versioned = new CachingCoffeeCompiler(options, compiler);
+		FakeVersionedSupplier source = new FakeVersionedSupplier("coffee1", "v1");
+		assertEquals("js1", versioned.compile("uri", source));
+		assertEquals("js1", versioned.compile("uri", source));
+		assertEquals(1, source.reads);
+		assertEquals(2, source.versionChecks);
+		source.source = "coffee2";
+		source.version = "v2";
+		assertEquals("js2", versioned.compile("uri", source));
+		assertEquals(2, source.reads);
+	}
+	
+	@Test
+	public void shouldOnlyAskForLastModifiedWhenVersionChanges() throws Exception {
+		CachingCoffeeCompiler.CacheOptions options = new CachingCoffeeCompiler.CacheOptions();
+		options.versionCheckInterval = 0;
+		CachingCoffeeCompiler versioned = new CachingCoffeeCompiler(options, compiler);
+		FakeVersionedSupplier source = new FakeVersionedSupplier("coffee1", "v1");
+		source.lastModified = 1000;
+		versioned.compile("uri", source);
+		versioned.compile("uri", source);
+		assertEquals("js1", versioned.currentOutput("uri", source).getJavaScript());
+		assertEquals(1000, versioned.lastModified("uri"));
+		assertEquals(1, source.lastModifiedChecks);
+		source.source = "coffee2";
+		source.version = "v2";
+		source.lastModified = 2000;
+		versioned.compile("uri", source);
+		assertEquals(2000, versioned.lastModified("uri"));
+		assertEquals(2, source.lastModifiedChecks);
+	}
+	
+	@Test
+	public void shouldRateLimitVersionChecks() throws Exception {
+		FakeVersionedSupplier source = new FakeVersionedSupplier("coffee1", "v1");
+		cachingCompiler.compile("uri", source);
+		cachingCompiler.compile("uri", source);
+		cachingCompiler.compile("uri", source);
+		assertEquals(1, source.reads);
+		assertEquals(1, source.versionChecks);
+	}
+	
+	@Test
+	public void shouldKeepVersionWhenOutputExpiresBetweenChecks() throws Exception {
+		CachingCoffeeCompiler.CacheOptions options = new CachingCoffeeCompiler.CacheOptions();
+		options.expirationTime = 1;
+		options.expirationTimeUnit = TimeUnit.MILLISECONDS;
+		CachingCoffeeCompiler expiring = new CachingCoffeeCompiler(options, compiler);
+		FakeVersionedSupplier source = new FakeVersionedSupplier("coffee1", "v1");
+		expiring.compile("uri", source);
+		Thread.sleep(5);
+		assertEquals("js1", expiring.compile("uri", source));
+		assertEquals(1, source.versionChecks);
+		assertEquals("v1", expiring.compiledVersion("uri"));
+	}
+	
+	@Test
+	public void shouldRecompileWatchedSourceWhenItChanges() throws Exception {
+		CachingCoffeeCompiler.CacheOptions options = new CachingCoffeeCompiler.CacheOptions();
+		options.watchInterval = 5;
+		CachingCoffeeCompiler watching = new CachingCoffeeCompiler(options, compiler);
+		FakeVersionedSupplier source = new FakeVersionedSupplier("coffee1", "v1");
+		try {
+			assertEquals("js1", watching.compile("uri", source));
+			source.source = "coffee2";
+			source.version = "v2";
+			// Done once the recompiled output is cached, not merely once the new version is indexed.
+			for (int i = 0; i < 500; i++) {
+				if ("v2".equals(watching.compiledVersion("uri")) && watching.currentOutput("uri", source) != null) {
+					break;
+				}
+				Thread.sleep(10);
+			}
+			assertEquals("v2", watching.compiledVersion("uri"));
+			assertEquals("js2", watching.compile("uri", source));
+			assertEquals(2, source.reads);
+		} finally {
+			watching.shutdown();
+		}
+	}
+	
+	@Test
+	public void shouldRecompileExpiredEntry() throws Exception {
+		CachingCoffeeCompiler.CacheOptions options = new CachingCoffeeCompiler.CacheOptions();
+		options.expirationTime = 1;
+		options.expirationTimeUnit = TimeUnit.MILLISECONDS;
+		CachingCoffeeCompiler expiring = new CachingCoffeeCompiler(options, compiler);
+		expiring.compile("uri", "coffee1");
+		Thread.sleep(5);
+		expiring.compile("uri", "coffee1");
+		verify(compiler, times(2)).compile("coffee1");
+	}
+	
+	@Test
+	public void shouldServeExpiredEntryWhileRefreshing() throws Exception {
+		CachingCoffeeCompiler.CacheOptions options = new CachingCoffeeCompiler.CacheOptions();
+		options.refreshAhead = true;
+		options.expirationTime = 1;
+		options.expirationTimeUnit = TimeUnit.MILLISECONDS;
+		CachingCoffeeCompiler refreshing = new CachingCoffeeCompiler(options, compiler);
+		assertEquals("js1", refreshing.compile("uri", "coffee1"));
+		Thread.sleep(5);
+		CountDownLatch release = blockCompile("coffee1", "js1b");
+		assertEquals("js1", refreshing.compile("uri", "coffee1"));
+		release.countDown();
+		awaitOutput(refreshing, "uri", "coffee1", "js1b");
+		refreshing.shutdown();
+	}
+	
+	@Test
+	public void shouldServePreviousOutputWhileChangedFileCompiles() throws Exception {
+		CachingCoffeeCompiler.CacheOptions options = new CachingCoffeeCompiler.CacheOptions();
+		options.refreshAhead = true;
+		CachingCoffeeCompiler refreshing = new CachingCoffeeCompiler(options, compiler);
+		assertEquals("js1", refreshing.compile("uri", "coffee1"));
+		CountDownLatch release = blockCompile("coffee2", "js2");
+		assertEquals("js1", refreshing.compile("uri", "coffee2"));
+		assertEquals("js1", refreshing.compile("uri", "coffee2"));
+		release.countDown();
+		awaitOutput(refreshing, "uri", "coffee2", "js2");
+		verify(compiler, times(1)).compile("coffee2");
+		refreshing.shutdown();
+	}
+	
+	@Test
+	public void shouldServeOffHeapOutput() throws Exception {
+		CachingCoffeeCompiler.CacheOptions options = new CachingCoffeeCompiler.CacheOptions();
+		options.offHeap = true;
+		CachingCoffeeCompiler offHeap = new CachingCoffeeCompiler(options, compiler);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		offHeap.compileOutput("uri", sourceSupplier1).writeTo(out);
+		assertEquals("js1", out.toString("UTF-8"));
+		assertEquals("js1", offHeap.compile("uri", sourceSupplier1));
+		verify(compiler, times(1)).compile("coffee1");
+	}
+	
+	@Test
+	public void shouldServeOutputFromDiskAfterRestart() throws Exception {
+		CachingCoffeeCompiler.CacheOptions options = new CachingCoffeeCompiler.CacheOptions();
+		options.diskCacheDirectory = Files.createTempDir();
+		try {
+			assertEquals("js1", new CachingCoffeeCompiler(options, compiler).compile("uri", "coffee1"));
+			assertEquals("js1", new CachingCoffeeCompiler(options, compiler).compile("uri", "coffee1"));
+			verify(compiler, times(1)).compile("coffee1");
+		} finally {
+			for (File file : options.diskCacheDirectory.listFiles()) {
+				file.delete();
+			}
+			options.diskCacheDirectory.delete();
+		}
+	}
+	
+	@Test
+	public void shouldServeOutputCompiledByAnotherNode() throws Exception {
+		File shared = Files.createTempDir();
+		try {
+			CachingCoffeeCompiler.CacheOptions options = new CachingCoffeeCompiler.CacheOptions();
+			options.assetStore = new SharedDirectoryAssetStore(shared);
+			assertEquals("js1", new CachingCoffeeCompiler(options, compiler).compile("uri", "coffee1"));
+			CachingCoffeeCompiler.CacheOptions otherNode = new CachingCoffeeCompiler.CacheOptions();
+			otherNode.assetStore = new SharedDirectoryAssetStore(shared);
+			assertEquals("js1", new CachingCoffeeCompiler(otherNode, compiler).compile("uri", "coffee1"));
+			verify(compiler, times(1)).compile("coffee1");
+			assertEquals(1, shared.listFiles().length);
+		} finally {
+			for (File file : shared.listFiles()) {
+				file.delete();
+			}
+			shared.delete();
+		}
+	}
+
+	@Test
+	public void compileAllShouldReuseOutputCompiledByAnotherNode() throws Exception {
+		when(compiler.compileAll(Matchers.<Map<String, Supplier<String>>>any()))
+				.thenReturn(ImmutableMap.of("uri2", CompilationResult.success("uri2", "js2")));
+		Map<String, Supplier<String>> sources = ImmutableMap.<String, Supplier<String>>of("uri2", Suppliers.ofInstance("coffee2"));
+		File shared = Files.createTempDir();
+		try {
+			CachingCoffeeCompiler.CacheOptions options = new CachingCoffeeCompiler.CacheOptions();
+			options.assetStore = new SharedDirectoryAssetStore(shared);
+			assertEquals("js2", new CachingCoffeeCompiler(options, compiler).compileAll(sources).get("uri2").getJavaScript());
+			CachingCoffeeCompiler.CacheOptions otherNode = new CachingCoffeeCompiler.CacheOptions();
+			otherNode.assetStore = new SharedDirectoryAssetStore(shared);
+			assertEquals("js2", new CachingCoffeeCompiler(otherNode, compiler).compileAll(sources).get("uri2").getJavaScript());
+			verify(compiler, times(1)).compileAll(Matchers.<Map<String, Supplier<String>>>any());
+			// The output, and no lock left behind.
+			assertEquals(1, shared.listFiles().length);
+		} finally {
+			for (File file : shared.listFiles()) {
+				file.delete();
+			}
+			shared.delete();
+		}
+	}
+
+	@Test
+	public void currentOutputShouldNeverReadOrCompile() throws Exception {
+		CachingCoffeeCompiler.CacheOptions options = new CachingCoffeeCompiler.CacheOptions();
+		options.versionCheckInterval = 0;
+		CachingCoffeeCompiler versioned = new CachingCoffeeCompiler(options, compiler);
+		FakeVersionedSupplier source = new FakeVersionedSupplier("coffee1", "v1");
+		assertNull(versioned.currentOutput("uri", source));
+		CompiledOutput compiled = versioned.compileOutput("uri", source);
+		assertSame(compiled, versioned.currentOutput("uri", source));
+		source.source = "coffee2";
+		source.version = "v2";
+		assertNull(versioned.currentOutput("uri", source));
+		assertEquals(1, source.reads);
+		verify(compiler, never()).compile("coffee2");
+	}
+	
+	@Test
+	public void compileAsyncShouldShareTheCompileInProgress() throws Exception {
+		CountDownLatch release = blockCompile("coffee1", "js1");
+		ListenableFuture<String> first = cachingCompiler.compileAsync("uri", sourceSupplier1);
+		ListenableFuture<String> second = cachingCompiler.compileAsync("uri", sourceSupplier1);
+		assertFalse(first.isDone());
+		assertFalse(second.isDone());
+		release.countDown();
+		assertEquals("js1", first.get(5, TimeUnit.SECONDS));
+		assertEquals("js1", second.get(5, TimeUnit.SECONDS));
+		verify(compiler, times(1)).compile("coffee1");
+	}
+	
+	@Test
+	public void compileAsyncShouldCompleteCachedVersionedSourceOnTheCallingThread() throws Exception {
+		FakeVersionedSupplier source = new FakeVersionedSupplier("coffee1", "v1");
+		cachingCompiler.compile("uri", source);
+		ListenableFuture<String> future = cachingCompiler.compileAsync("uri", source);
+		assertTrue(future.isDone());
+		assertEquals("js1", future.get());
+		assertEquals(1, source.reads);
+	}
+	
+	@Test
+	public void compileOutputAsyncShouldCompleteWithTheCachedOutput() throws Exception {
+		CompiledOutput output = cachingCompiler.compileOutputAsync("uri", sourceSupplier1).get(5, TimeUnit.SECONDS);
+		assertEquals("js1", output.getJavaScript());
+		assertSame(output, cachingCompiler.compileOutput("uri", sourceSupplier1));
+	}
+	
+	@Test
+	public void compileAsyncShouldRejectCompilesBeyondTheQueueLimit() throws Exception {
+		CachingCoffeeCompiler.CacheOptions options = new CachingCoffeeCompiler.CacheOptions();
+		options.asyncThreads = 1;
+		options.maxQueuedAsyncCompiles = 1;
+		CachingCoffeeCompiler bounded = new CachingCoffeeCompiler(options, compiler);
+		CountDownLatch release = blockCompile("coffee1", "js1");
+		ListenableFuture<String> running = bounded.compileAsync("uri1", sourceSupplier1);
+		verify(compiler, timeout(2000)).compile("coffee1");
+		ListenableFuture<String> queued = bounded.compileAsync("uri2", Suppliers.ofInstance("coffee2"));
+		try {
+			bounded.compileAsync("uri3", Suppliers.ofInstance("coffee3")).get(5, TimeUnit.SECONDS);
+			throw new AssertionError("Expected the compile to be rejected");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		} finally {
+			release.countDown();
+		}
+		assertEquals("js1", running.get(5, TimeUnit.SECONDS));
+		assertEquals("js2", queued.get(5, TimeUnit.SECONDS));
+		bounded.shutdown();
+	}
+	
+	@Test
+	public void compileAsyncShouldFailWithCompilationException() throws Exception {
+		when(compiler.compile("broken")).thenThrow(new JCoffeeScriptCompileException("Parse error on line 1"));
+		try {
+			cachingCompiler.compileAsync("uri", Suppliers.ofInstance("broken")).get(5, TimeUnit.SECONDS);
+			throw new AssertionError("Expected a compilation failure");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof CompilationException);
+		}
+	}
+	
+	@Test
+	public void compileAllShouldOnlyCompileUncachedFiles() throws Exception {
+		when(sourceSupplier2.get()).thenReturn("coffee2");
+		when(compiler.compileAll(Matchers.<Map<String, Supplier<String>>>any()))
+				.thenReturn(ImmutableMap.of("uri2", CompilationResult.success("uri2", "js2")));
+		cachingCompiler.compile("uri", sourceSupplier1);
+
+		Map<String, Supplier<String>> sources = Maps.newLinkedHashMap();
+		sources.put("uri", sourceSupplier1);
+		sources.put("uri2", sourceSupplier2);
+		Map<String, CompilationResult> results = cachingCompiler.compileAll(sources);
+
+		assertEquals("js1", results.get("uri").getJavaScript());
+		assertEquals("js2", results.get("uri2").getJavaScript());
+		assertEquals("js2", cachingCompiler.compile("uri2", sourceSupplier2));
+		verify(compiler, times(1)).compileAll(Matchers.<Map<String, Supplier<String>>>any());
+		verify(compiler, never()).compile("coffee2");
+	}
+	
+	private static class FakeVersionedSupplier implements VersionedSupplier {
+		volatile String source;
+		volatile String version;
+		volatile int reads;
+		volatile int versionChecks;
+		volatile long lastModified;
+		volatile int lastModifiedChecks;
+		
+		FakeVersionedSupplier(String source, String version) {
+			this.source = source;
+			this.version = version;
+		}
+		
+		public String get() {
+			reads++;
+			return source;
+		}
+		
+		public String getVersion() {
+			versionChecks++;
+			return version;
+		}
+		
+		public long lastModified() {
+			lastModifiedChecks++;
+			return lastModified;
+		}
+	}
+	
+	private UncheckedExecutionException compileFailure(CachingCoffeeCompiler cachingCompiler, String coffee) {
+		try {
+			cachingCompiler.compile("uri", coffee);
+		} catch (UncheckedExecutionException e) {
+			assertTrue(e.getCause() instanceof CompilationException);
+			return e;
+		}
+		throw new AssertionError("Expected a compilation failure");
+	}
+	
+	private CountDownLatch blockCompile(String coffee, final String javaScript) throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		when(compiler.compile(coffee)).thenAnswer(new Answer<String>() {
+			public String answer(InvocationOnMock invocation) throws Throwable {
+				release.await();
+				return javaScript;
+			}
+		});
+		return release;
+	}
+	
+	private void awaitOutput(CachingCoffeeCompiler cachingCompiler, String uri, String coffee, String expected) throws Exception {
+		for (int i = 0; i < 200 && !expected.equals(cachingCompiler.compile(uri, coffee)); i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(expected, cachingCompiler.compile(uri, coffee));
 	}
 	
 }
@@ -0,0 +1,77 @@
+package com.cadrlife.coffee.compile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.CharStreams;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CompiledOutputTest {
+	private static final String JAVA_SCRIPT = "var café = '" + Strings.repeat("x", 20000) + "';";
+
+	@Test
+	public void offHeapOutputShouldWriteUtf8() throws Exception {
+		CompiledOutput output = CompiledOutput.offHeap(JAVA_SCRIPT, false);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		output.writeTo(out);
+		output.writeTo(out);
+		assertEquals(JAVA_SCRIPT + JAVA_SCRIPT, new String(out.toByteArray(), Charsets.UTF_8));
+		assertEquals(JAVA_SCRIPT, output.getJavaScript());
+	}
+
+	@Test
+	public void outputShouldWeighEncodedBytes() {
+		int encodedLength = JAVA_SCRIPT.getBytes(Charsets.UTF_8).length;
+		assertEquals(JAVA_SCRIPT.length() + 1, encodedLength);
+		assertEquals(encodedLength, CompiledOutput.onHeap(JAVA_SCRIPT, false).getLength());
+		assertEquals(encodedLength, CompiledOutput.offHeap(JAVA_SCRIPT, false).getLength());
+		assertEquals(CompilationCacheWeights.weigh(encodedLength) + 2 * JAVA_SCRIPT.length(), CompiledOutput.onHeap(JAVA_SCRIPT, false).getWeightBytes());
+		assertEquals(CompilationCacheWeights.weigh(encodedLength), CompiledOutput.offHeap(JAVA_SCRIPT, false).getWeightBytes());
+	}
+
+	@Test
+	public void contentHashShouldOnlyDependOnTheJavaScript() {
+		assertEquals(CompiledOutput.onHeap(JAVA_SCRIPT, false).getContentHash(), CompiledOutput.offHeap(JAVA_SCRIPT, false).getContentHash());
+		assertEquals(40, CompiledOutput.onHeap(JAVA_SCRIPT, false).getContentHash().length());
+		assertFalse(CompiledOutput.onHeap(JAVA_SCRIPT, false).getContentHash().equals(CompiledOutput.onHeap("x", false).getContentHash()));
+	}
+
+	@Test
+	public void shouldKeepGzippedCopy() throws Exception {
+		for (CompiledOutput output : new CompiledOutput[] {CompiledOutput.onHeap(JAVA_SCRIPT, true), CompiledOutput.offHeap(JAVA_SCRIPT, true)}) {
+			assertTrue(output.hasGzip());
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			output.writeGzipTo(out);
+			assertEquals(output.getGzipLength(), out.size());
+			assertTrue(out.size() < 1000);
+			GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()));
+			assertEquals(JAVA_SCRIPT, CharStreams.toString(new InputStreamReader(in, Charsets.UTF_8)));
+		}
+		assertTrue(CompiledOutput.onHeap(JAVA_SCRIPT, true).getWeightBytes() > CompiledOutput.onHeap(JAVA_SCRIPT, false).getWeightBytes());
+	}
+
+	@Test
+	public void shouldNotKeepGzippedCopyThatIsNoSmaller() {
+		assertFalse(CompiledOutput.onHeap("x", true).hasGzip());
+		assertFalse(CompiledOutput.onHeap(JAVA_SCRIPT, false).hasGzip());
+	}
+
+	@Test
+	public void heapOutputShouldWriteUtf8() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CompiledOutput output = CompiledOutput.onHeap(JAVA_SCRIPT, false);
+		output.writeTo(out);
+		assertEquals(JAVA_SCRIPT, new String(out.toByteArray(), Charsets.UTF_8));
+		assertSame(output.getJavaScript(), output.getJavaScript());
+	}
+}
@@ -0,0 +1,105 @@
+package com.cadrlife.coffee.compile;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cadrlife.coffee.jcoffeescript.JCoffeeScriptCompiler;
+import com.google.common.base.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class CompilerPoolTest {
+	ThreadSafeCoffeeScriptCompiler.CompilerOptions options;
+	Supplier<JCoffeeScriptCompiler> factory = new Supplier<JCoffeeScriptCompiler>() {
+		public JCoffeeScriptCompiler get() {
+			return mock(JCoffeeScriptCompiler.class);
+		}
+	};
+
+	@Before
+	public void setup() {
+		options = new ThreadSafeCoffeeScriptCompiler.CompilerOptions();
+		options.maxCompilers = 2;
+		options.maxWaitTime = 50;
+		options.maxWaitTimeUnit = TimeUnit.MILLISECONDS;
+	}
+
+	@Test
+	public void shouldReuseReturnedCompiler() {
+		CompilerPool pool = new CompilerPool(options, factory);
+		JCoffeeScriptCompiler first = pool.checkout();
+		pool.checkin(first);
+		assertSame(first, pool.checkout());
+		assertEquals(1, pool.getCreatedCount());
+	}
+
+	@Test
+	public void shouldTrackOccupancy() {
+		CompilerPool pool = new CompilerPool(options, factory);
+		JCoffeeScriptCompiler first = pool.checkout();
+		JCoffeeScriptCompiler second = pool.checkout();
+		assertNotSame(first, second);
+		assertEquals(2, pool.getActiveCount());
+		assertEquals(0, pool.getIdleCount());
+		pool.checkin(first);
+		assertEquals(1, pool.getActiveCount());
+		assertEquals(1, pool.getIdleCount());
+		assertEquals(2, pool.getCheckoutCount());
+	}
+
+	@Test
+	public void shouldPrefillUpToMaxSize() {
+		CompilerPool pool = new CompilerPool(options, factory);
+		JCoffeeScriptCompiler checkedOut = pool.checkout();
+		JCoffeeScriptCompiler prefilled = pool.create();
+		assertTrue(pool.prefill(prefilled));
+		assertFalse(pool.prefill(pool.create()));
+		assertEquals(1, pool.getIdleCount());
+		assertSame(prefilled, pool.checkout());
+		pool.checkin(checkedOut);
+		assertEquals(3, pool.getCreatedCount());
+	}
+
+	@Test(expected = CompilerUnavailableException.class)
+	public void shouldTimeOutWhenExhausted() {
+		CompilerPool pool = new CompilerPool(options, factory);
+		pool.checkout();
+		pool.checkout();
+		pool.checkout();
+	}
+
+	@Test
+	public void shouldEvictIdleCompilers() throws Exception {
+		options.maxIdleTime = 1;
+		options.maxIdleTimeUnit = TimeUnit.MILLISECONDS;
+		CompilerPool pool = new CompilerPool(options, factory);
+		JCoffeeScriptCompiler first = pool.checkout();
+		pool.checkin(first);
+		Thread.sleep(10);
+		assertNotSame(first, pool.checkout());
+		assertEquals(2, pool.getCreatedCount());
+	}
+
+	@Test
+	public void shouldEvictIdleCompilersWithoutFurtherUse() throws Exception {
+		options.maxIdleTime = 1;
+		options.maxIdleTimeUnit = TimeUnit.MILLISECONDS;
+		CompilerPool pool = new CompilerPool(options, factory);
+		JCoffeeScriptCompiler first = pool.checkout();
+		JCoffeeScriptCompiler second = pool.checkout();
+		pool.checkin(first);
+		pool.checkin(second);
+		for (int i = 0; i < 200 && pool.getIdleCount() > 0; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, pool.getIdleCount());
+		pool.shutdown();
+	}
+}
@@ -0,0 +1,60 @@
+package com.cadrlife.coffee.compile;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DiskCompilationCacheTest {
+	File directory;
+
+	@Before
+	public void setup() {
+		directory = Files.createTempDir();
+	}
+
+	@After
+	public void cleanup() {
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void shouldReadBackWhatWasStored() throws Exception {
+		DiskCompilationCache cache = new DiskCompilationCache(directory, 1024);
+		cache.put("abc", "var é = 1;");
+		assertEquals("var é = 1;", cache.get("abc"));
+		assertNull(cache.get("def"));
+	}
+
+	@Test
+	public void shouldSurviveRestart() throws Exception {
+		new DiskCompilationCache(directory, 1024).put("abc", "x = 1;");
+		DiskCompilationCache restarted = new DiskCompilationCache(directory, 1024);
+		assertEquals("x = 1;", restarted.get("abc"));
+		assertEquals(6, restarted.getSizeBytes());
+	}
+
+	@Test
+	public void shouldDeleteLeastRecentlyUsedWhenOverLimit() throws Exception {
+		DiskCompilationCache cache = new DiskCompilationCache(directory, 25);
+		cache.put("a", "0123456789");
+		cache.put("b", "0123456789");
+		for (File file : directory.listFiles()) {
+			file.setLastModified(file.getName().equals("a.js") ? 1000 : 2000);
+		}
+		cache.put("c", "0123456789");
+		assertNull(cache.get("a"));
+		assertEquals("0123456789", cache.get("b"));
+		assertEquals("0123456789", cache.get("c"));
+		assertEquals(20, cache.getSizeBytes());
+	}
+}
@@ -0,0 +1,57 @@
+package com.cadrlife.coffee.compile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cadrlife.coffee.jcoffeescript.JCoffeeScriptCompileException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ProcessCompilerWorkersTest {
+	ThreadSafeCoffeeScriptCompiler.CompilerOptions options;
+	ProcessCompilerWorkers workers;
+
+	@Before
+	public void setup() {
+		options = new ThreadSafeCoffeeScriptCompiler.CompilerOptions();
+		options.workerProcesses = 1;
+	}
+
+	@After
+	public void shutdown() {
+		workers.shutdown();
+	}
+
+	@Test
+	public void shouldCompileInWorker() throws Exception {
+		workers = new ProcessCompilerWorkers(options);
+		assertTrue(workers.compile("a = 1").contains("a = 1;"));
+		assertTrue(workers.compile("b = 2").contains("b = 2;"));
+		assertEquals(1, workers.getStartedCount());
+	}
+
+	@Test(expected = JCoffeeScriptCompileException.class)
+	public void shouldReportCompileErrors() throws Exception {
+		workers = new ProcessCompilerWorkers(options);
+		workers.compile("a = (");
+	}
+
+	@Test
+	public void shouldReplaceWorkerAfterCompileLimit() throws Exception {
+		options.compilesPerWorker = 1;
+		workers = new ProcessCompilerWorkers(options);
+		workers.compile("a = 1");
+		workers.compile("b = 2");
+		assertEquals(2, workers.getStartedCount());
+	}
+
+	@Test(expected = CompilerUnavailableException.class)
+	public void shouldRefuseCompilesAfterShutdown() throws Exception {
+		workers = new ProcessCompilerWorkers(options);
+		workers.compile("a = 1");
+		workers.shutdown();
+		workers.compile("b = 2");
+	}
+}
@@ -0,0 +1,96 @@
+package com.cadrlife.coffee.compile;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SharedDirectoryAssetStoreTest {
+	File directory;
+
+	@Before
+	public void setup() {
+		directory = Files.createTempDir();
+	}
+
+	@After
+	public void cleanup() {
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void shouldShareOutputBetweenNodes() throws Exception {
+		new SharedDirectoryAssetStore(directory).put("abc", "var é = 1;");
+		SharedDirectoryAssetStore otherNode = new SharedDirectoryAssetStore(directory);
+		assertEquals("var é = 1;", otherNode.get("abc"));
+		assertNull(otherNode.get("def"));
+		assertEquals(1, directory.listFiles().length);
+	}
+
+	@Test
+	public void shouldWaitForTheNodeHoldingTheLock() throws Exception {
+		SharedDirectoryAssetStore node = new SharedDirectoryAssetStore(directory);
+		final SharedDirectoryAssetStore otherNode = new SharedDirectoryAssetStore(directory);
+		assertNull(node.claim("abc"));
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<String> waiting = executor.submit(new Callable<String>() {
+				public String call() {
+					return otherNode.claim("abc");
+				}
+			});
+			Thread.sleep(100);
+			assertFalse(waiting.isDone());
+			node.put("abc", "x = 1;");
+			node.release("abc");
+			assertEquals("x = 1;", waiting.get(5, TimeUnit.SECONDS));
+			assertFalse(new File(directory, "abc.lock").exists());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void shouldLetAnotherNodeCompileAfterAFailedCompile() throws Exception {
+		SharedDirectoryAssetStore node = new SharedDirectoryAssetStore(directory);
+		SharedDirectoryAssetStore otherNode = new SharedDirectoryAssetStore(directory);
+		assertNull(node.claim("abc"));
+		node.release("abc");
+		assertNull(otherNode.claim("abc"));
+		assertTrue(new File(directory, "abc.lock").exists());
+	}
+
+	@Test
+	public void shouldOnlyReleaseItsOwnLock() throws Exception {
+		SharedDirectoryAssetStore node = new SharedDirectoryAssetStore(directory);
+		assertNull(node.claim("abc"));
+		new SharedDirectoryAssetStore(directory).release("abc");
+		assertTrue(new File(directory, "abc.lock").exists());
+	}
+
+	@Test
+	public void shouldTakeOverStaleLock() throws Exception {
+		File lock = new File(directory, "abc.lock");
+		lock.createNewFile();
+		lock.setLastModified(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(10));
+		SharedDirectoryAssetStore node = new SharedDirectoryAssetStore(directory, 1, TimeUnit.MINUTES);
+		assertNull(node.claim("abc"));
+		assertTrue(lock.lastModified() > System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(1));
+	}
+}
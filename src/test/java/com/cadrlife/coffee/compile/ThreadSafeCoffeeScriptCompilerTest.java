@@ -0,0 +1,179 @@
+package com.cadrlife.coffee.compile;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.cadrlife.coffee.jcoffeescript.JCoffeeScriptCompileException;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ThreadSafeCoffeeScriptCompilerTest {
+
+	@Test
+	public void shouldCompileWithSharedScope() throws Exception {
+		ThreadSafeCoffeeScriptCompiler compiler = new ThreadSafeCoffeeScriptCompiler(sharedScopeOptions());
+		assertTrue(compiler.compile("square = (x) -> x * x").contains("return x * x;"));
+	}
+
+	@Test
+	public void shouldCompileConcurrentlyWithSharedScope() throws Exception {
+		final ThreadSafeCoffeeScriptCompiler compiler = new ThreadSafeCoffeeScriptCompiler(sharedScopeOptions());
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<String>> results = Lists.newArrayList();
+			for (int i = 0; i < 8; i++) {
+				final String name = "fn" + i;
+				results.add(executor.submit(new Callable<String>() {
+					public String call() throws Exception {
+						return compiler.compile(name + " = (x) -> x + 1");
+					}
+				}));
+			}
+			for (int i = 0; i < 8; i++) {
+				assertTrue(results.get(i).get().contains("fn" + i + " = function(x)"));
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test(expected = JCoffeeScriptCompileException.class)
+	public void shouldReportErrorsWithSharedScope() throws Exception {
+		new ThreadSafeCoffeeScriptCompiler(sharedScopeOptions()).compile("a = (");
+	}
+
+	@Test
+	public void shouldCompileOnDedicatedThreadsForShortLivedCallers() throws Exception {
+		ThreadSafeCoffeeScriptCompiler.CompilerOptions options = new ThreadSafeCoffeeScriptCompiler.CompilerOptions();
+		options.dedicatedThreads = true;
+		options.maxCompilers = 1;
+		final ThreadSafeCoffeeScriptCompiler compiler = new ThreadSafeCoffeeScriptCompiler(options);
+		try {
+			for (int i = 0; i < 3; i++) {
+				ExecutorService shortLived = Executors.newSingleThreadExecutor();
+				Future<String> result = shortLived.submit(new Callable<String>() {
+					public String call() throws Exception {
+						return compiler.compile("x = 1");
+					}
+				});
+				assertTrue(result.get().contains("x = 1;"));
+				shortLived.shutdown();
+			}
+			assertEquals(1, compiler.getPool().getCreatedCount());
+		} finally {
+			compiler.shutdown();
+		}
+	}
+
+	@Test
+	public void shouldNotWaitLongerThanMaxWaitBehindABatchOnDedicatedThreads() throws Exception {
+		ThreadSafeCoffeeScriptCompiler.CompilerOptions options = new ThreadSafeCoffeeScriptCompiler.CompilerOptions();
+		options.dedicatedThreads = true;
+		options.maxCompilers = 1;
+		options.maxWaitTime = 50;
+		options.maxWaitTimeUnit = TimeUnit.MILLISECONDS;
+		final ThreadSafeCoffeeScriptCompiler compiler = new ThreadSafeCoffeeScriptCompiler(options);
+		final CountDownLatch batchStarted = new CountDownLatch(1);
+		final CountDownLatch releaseBatch = new CountDownLatch(1);
+		ExecutorService batchCaller = Executors.newSingleThreadExecutor();
+		try {
+			final Map<String, Supplier<String>> batch = Maps.newHashMap();
+			batch.put("slow.coffee", new Supplier<String>() {
+				public String get() {
+					batchStarted.countDown();
+					try {
+						releaseBatch.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					return "x = 1";
+				}
+			});
+			Future<Map<String, CompilationResult>> batchResult = batchCaller.submit(new Callable<Map<String, CompilationResult>>() {
+				public Map<String, CompilationResult> call() {
+					return compiler.compileAll(batch);
+				}
+			});
+			batchStarted.await();
+			long start = System.nanoTime();
+			try {
+				compiler.compile("y = 2");
+				throw new AssertionError("Expected the compile to time out");
+			} catch (CompilerUnavailableException e) {
+				assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+			}
+			releaseBatch.countDown();
+			assertTrue(batchResult.get().get("slow.coffee").isSuccessful());
+			assertTrue(compiler.compile("y = 2").contains("y = 2;"));
+		} finally {
+			releaseBatch.countDown();
+			batchCaller.shutdown();
+			compiler.shutdown();
+		}
+	}
+
+	@Test(expected = JCoffeeScriptCompileException.class)
+	public void shouldReportErrorsFromDedicatedThreads() throws Exception {
+		ThreadSafeCoffeeScriptCompiler.CompilerOptions options = sharedScopeOptions();
+		options.dedicatedThreads = true;
+		ThreadSafeCoffeeScriptCompiler compiler = new ThreadSafeCoffeeScriptCompiler(options);
+		try {
+			compiler.compile("a = (");
+		} finally {
+			compiler.shutdown();
+		}
+	}
+
+	@Test
+	public void shouldCompileBatchReportingFailuresPerFile() throws Exception {
+		ThreadSafeCoffeeScriptCompiler.CompilerOptions options = sharedScopeOptions();
+		options.maxCompilers = 2;
+		ThreadSafeCoffeeScriptCompiler compiler = new ThreadSafeCoffeeScriptCompiler(options);
+		Map<String, Supplier<String>> sources = Maps.newLinkedHashMap();
+		sources.put("/a.coffee", Suppliers.ofInstance("a = 1"));
+		sources.put("/broken.coffee", Suppliers.ofInstance("a = ("));
+		sources.put("/b.coffee", Suppliers.ofInstance("b = 2"));
+
+		Map<String, CompilationResult> results = compiler.compileAll(sources);
+
+		assertEquals(Lists.newArrayList(sources.keySet()), Lists.newArrayList(results.keySet()));
+		assertTrue(results.get("/a.coffee").getJavaScript().contains("a = 1;"));
+		assertTrue(results.get("/b.coffee").getJavaScript().contains("b = 2;"));
+		assertFalse(results.get("/broken.coffee").isSuccessful());
+		CompilationException failure = (CompilationException) results.get("/broken.coffee").getException();
+		assertEquals("/broken.coffee", failure.getSourceFile());
+	}
+
+	@Test
+	public void shouldWarmEveryCompilerInBackground() throws Exception {
+		ThreadSafeCoffeeScriptCompiler.CompilerOptions options = sharedScopeOptions();
+		options.maxCompilers = 2;
+		ThreadSafeCoffeeScriptCompiler compiler = new ThreadSafeCoffeeScriptCompiler(options);
+		CompilerWarmup warmup = compiler.startWarmup();
+		assertTrue(warmup.awaitDone(60, TimeUnit.SECONDS));
+		assertEquals(2, warmup.getCompletedCount());
+		assertEquals(0, warmup.getFailedCount());
+		assertEquals(2, compiler.getPool().getCreatedCount());
+		assertEquals(2, compiler.getPool().getIdleCount());
+	}
+
+	private ThreadSafeCoffeeScriptCompiler.CompilerOptions sharedScopeOptions() {
+		ThreadSafeCoffeeScriptCompiler.CompilerOptions options = new ThreadSafeCoffeeScriptCompiler.CompilerOptions();
+		options.sharedScope = true;
+		return options;
+	}
+}
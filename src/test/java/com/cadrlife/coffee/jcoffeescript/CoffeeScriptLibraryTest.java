@@ -0,0 +1,98 @@
+package com.cadrlife.coffee.jcoffeescript;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+import com.google.common.io.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CoffeeScriptLibraryTest {
+
+	@Test
+	public void shouldSplitIntoRequireModulesAndExport() throws Exception {
+		List<String> scripts = CoffeeScriptLibrary.splitModules(CoffeeScriptLibrary.read());
+		assertEquals(10, scripts.size());
+		assertTrue(scripts.get(1).startsWith("require[\"./helpers\"]=new function"));
+		assertTrue(scripts.get(8).startsWith("require[\"./browser\"]=new function"));
+	}
+
+	@Test
+	public void splitModulesShouldEvaluateToWorkingCompiler() throws Exception {
+		Context context = Context.enter();
+		context.setOptimizationLevel(-1);
+		try {
+			Scriptable scope = context.initStandardObjects();
+			for (String script : CoffeeScriptLibrary.splitModules(CoffeeScriptLibrary.read())) {
+				context.evaluateString(scope, script, CoffeeScriptLibrary.NAME, 0, null);
+			}
+			Scriptable coffeeScript = (Scriptable) ScriptableObject.getProperty(scope, "CoffeeScript");
+			Function compile = (Function) ScriptableObject.getProperty(coffeeScript, "compile");
+			Object js = compile.call(context, scope, coffeeScript, new Object[] {"x = 1", context.newObject(scope)});
+			assertTrue(js.toString().contains("x = 1;"));
+		} finally {
+			Context.exit();
+		}
+	}
+
+	@Test
+	public void precompilerShouldWriteModuleClasses() throws Exception {
+		File output = Files.createTempDir();
+		new CoffeeScriptPrecompiler().precompile(output);
+		File precompiled = new File(output, "com/cadrlife/coffee/jcoffeescript/precompiled");
+		assertTrue(new File(precompiled, "CoffeeScriptModule0.class").isFile());
+		assertTrue(new File(precompiled, "CoffeeScriptModule6.class").isFile());
+		delete(output);
+	}
+
+	@Test
+	public void precompiledModulesShouldCompileLikeTheInterpretedLibrary() throws Exception {
+		File output = Files.createTempDir();
+		try {
+			new CoffeeScriptPrecompiler().precompile(output);
+			ClassLoader precompiledClasses = new URLClassLoader(new URL[] {output.toURI().toURL()}, getClass().getClassLoader());
+			Class.forName(CoffeeScriptLibrary.PRECOMPILED_CLASS_PREFIX + 1, false, precompiledClasses);
+			Context context = Context.enter();
+			context.setOptimizationLevel(-1);
+			try {
+				Scriptable interpreted = context.initStandardObjects();
+				context.evaluateString(interpreted, CoffeeScriptLibrary.read(), CoffeeScriptLibrary.NAME, 0, null);
+				Scriptable precompiled = context.initStandardObjects();
+				CoffeeScriptLibrary.evaluate(context, precompiled, precompiledClasses);
+				for (String source : new String[] {"x = 1", "square = (x) -> x * x\ncubes = (square(n) * n for n in [1..10])\n",
+						"class Snake extends Animal\n  move: ->\n    super 5\n"}) {
+					assertEquals(compile(context, interpreted, source), compile(context, precompiled, source));
+				}
+			} finally {
+				Context.exit();
+			}
+		} finally {
+			delete(output);
+		}
+	}
+
+	private static String compile(Context context, Scriptable scope, String source) {
+		Scriptable coffeeScript = (Scriptable) ScriptableObject.getProperty(scope, "CoffeeScript");
+		Function compile = (Function) ScriptableObject.getProperty(coffeeScript, "compile");
+		return Context.toString(compile.call(context, scope, coffeeScript, new Object[] {source, context.newObject(scope)}));
+	}
+
+	private void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
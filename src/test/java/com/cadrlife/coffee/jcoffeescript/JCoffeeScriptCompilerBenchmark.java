@@ -0,0 +1,77 @@
+package com.cadrlife.coffee.jcoffeescript;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Collections;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+
+import com.google.common.io.Closeables;
+
+/*
+ * Compares the per-compile cost of calling the cached CoffeeScript.compile function against
+ * evaluating a "CoffeeScript.compile(...)" snippet for every call, which is what the compiler used to do.
+ * Small sources are used on purpose, since that is where the per-call overhead dominates.
+ * Not a unit test, run the main method.
+ */
+public class JCoffeeScriptCompilerBenchmark {
+	private static final String SMALL_SOURCE = "square = (x) -> x * x\nalert square 3\n";
+	private static final int WARMUP = 200;
+	private static final int ITERATIONS = 1000;
+
+	public static void main(String[] args) throws Exception {
+		JCoffeeScriptCompiler compiler = new JCoffeeScriptCompiler();
+		Scriptable legacyScope = loadLibrary();
+
+		for (int i = 0; i < WARMUP; i++) {
+			compiler.compile(SMALL_SOURCE);
+			compileBySnippet(legacyScope, SMALL_SOURCE);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) {
+			compileBySnippet(legacyScope, SMALL_SOURCE);
+		}
+		long snippetNanos = (System.nanoTime() - start) / ITERATIONS;
+
+		start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) {
+			compiler.compile(SMALL_SOURCE);
+		}
+		long functionNanos = (System.nanoTime() - start) / ITERATIONS;
+
+		System.out.println(String.format("evaluateString per call: %6d us/compile", snippetNanos / 1000));
+		System.out.println(String.format("cached Function call:    %6d us/compile", functionNanos / 1000));
+		System.out.println(String.format("saving:                  %6d us/compile (%.0f%%)",
+				(snippetNanos - functionNanos) / 1000, 100.0 * (snippetNanos - functionNanos) / snippetNanos));
+	}
+
+	private static Scriptable loadLibrary() throws Exception {
+		Reader reader = new InputStreamReader(JCoffeeScriptCompiler.class.getClassLoader()
+				.getResourceAsStream("com/cadrlife/coffee/coffee-script-1.1.2.js"), "UTF-8");
+		Context context = Context.enter();
+		context.setOptimizationLevel(-1);
+		try {
+			Scriptable scope = context.initStandardObjects();
+			context.evaluateReader(scope, reader, "coffee-script-1.1.2.js", 0, null);
+			return scope;
+		} finally {
+			Context.exit();
+			Closeables.closeQuietly(reader);
+		}
+	}
+
+	private static String compileBySnippet(Scriptable globalScope, String source) {
+		Context context = Context.enter();
+		try {
+			Scriptable compileScope = context.newObject(globalScope);
+			compileScope.setParentScope(globalScope);
+			compileScope.put("coffeeScriptSource", compileScope, source);
+			return (String) context.evaluateString(compileScope, String.format("CoffeeScript.compile(coffeeScriptSource, %s);",
+					new Options(Collections.<Option>emptyList()).toJavaScript()), "JCoffeeScriptCompiler", 0, null);
+		} finally {
+			Context.exit();
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package com.cadrlife.coffee.jcoffeescript;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JCoffeeScriptCompilerTest {
+	JCoffeeScriptCompiler wrapped = JCoffeeScriptCompiler.withSharedScope(Collections.<Option>emptyList());
+	JCoffeeScriptCompiler bare = JCoffeeScriptCompiler.withSharedScope(Collections.singleton(Option.BARE));
+
+	@Test
+	public void shouldWrapByDefault() throws Exception {
+		assertTrue(wrapped.compile("x = 1").startsWith("(function() {"));
+	}
+
+	@Test
+	public void shouldHonorBareOption() throws Exception {
+		String js = bare.compile("x = 1");
+		assertFalse(js, js.contains("(function() {"));
+		assertTrue(js, js.contains("x = 1;"));
+	}
+
+	@Test
+	public void shouldNotLeakStateBetweenCompiles() throws Exception {
+		bare.compile("x = 1");
+		assertTrue(wrapped.compile("y = 2").startsWith("(function() {"));
+		assertFalse(bare.compile("y = 2").contains("(function() {"));
+	}
+
+	@Test
+	public void shouldRestoreScopeFromSnapshot() throws Exception {
+		File snapshots = Files.createTempDir();
+		try {
+			new JCoffeeScriptCompiler(Collections.<Option>emptyList(), snapshots);
+			File[] written = snapshots.listFiles();
+			assertEquals(1, written.length);
+			long modified = written[0].lastModified();
+
+			JCoffeeScriptCompiler restored = new JCoffeeScriptCompiler(Collections.singleton(Option.BARE), snapshots);
+			assertEquals(modified, written[0].lastModified());
+			assertTrue(restored.compile("x = [1, 2].slice(1)").contains("x = [1, 2].slice(1);"));
+		} finally {
+			deleteDirectory(snapshots);
+		}
+	}
+
+	@Test
+	public void shouldIgnoreCorruptSnapshot() throws Exception {
+		File snapshots = Files.createTempDir();
+		try {
+			new JCoffeeScriptCompiler(Collections.<Option>emptyList(), snapshots);
+			File snapshot = snapshots.listFiles()[0];
+			Files.write("garbage".getBytes(), snapshot);
+			JCoffeeScriptCompiler compiler = new JCoffeeScriptCompiler(Collections.<Option>emptyList(), snapshots);
+			assertTrue(compiler.compile("x = 1").contains("x = 1;"));
+			assertTrue(snapshot.length() > "garbage".length());
+		} finally {
+			deleteDirectory(snapshots);
+		}
+	}
+
+	@Test(expected = JCoffeeScriptCompileException.class)
+	public void shouldThrowOnSyntaxError() throws Exception {
+		wrapped.compile("a = (");
+	}
+
+	@Test(expected = JCoffeeScriptBudgetExceededException.class)
+	public void shouldRefuseSourceOverLengthBudget() throws Exception {
+		JCoffeeScriptCompiler compiler = JCoffeeScriptCompiler.withSharedScope(Collections.<Option>emptyList());
+		compiler.setBudget(new CompileBudget(0, TimeUnit.MILLISECONDS, 5));
+		compiler.compile("x = 123456");
+	}
+
+	@Test
+	public void shouldStopCompileOverTimeBudgetAndRecover() throws Exception {
+		JCoffeeScriptCompiler compiler = JCoffeeScriptCompiler.withSharedScope(Collections.<Option>emptyList());
+		compiler.setBudget(new CompileBudget(1, TimeUnit.NANOSECONDS, 0));
+		try {
+			compiler.compile("square = (x) -> x * x\nclass A extends B\n  m: -> @x\n");
+			fail("Expected the time budget to be exceeded");
+		} catch (JCoffeeScriptBudgetExceededException expected) {
+		}
+		compiler.setBudget(CompileBudget.UNLIMITED);
+		assertTrue(compiler.compile("x = 1").contains("x = 1;"));
+	}
+
+	@Test
+	public void shouldNotCountTimeQueuedForTheSharedScopeAgainstTheBudget() throws Exception {
+		final StringBuilder slowSource = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			slowSource.append("f").append(i).append(" = (x) -> x * ").append(i).append('\n');
+		}
+		JCoffeeScriptCompiler budgeted = JCoffeeScriptCompiler.withSharedScope(Collections.<Option>emptyList());
+		budgeted.setBudget(new CompileBudget(250, TimeUnit.MILLISECONDS, 0));
+		budgeted.compile("x = 1");
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<String> slow = executor.submit(new Callable<String>() {
+				public String call() throws Exception {
+					return wrapped.compile(slowSource.toString());
+				}
+			});
+			Thread.sleep(50);
+			long start = System.nanoTime();
+			assertTrue(budgeted.compile("y = 2").contains("y = 2;"));
+			assertTrue("Should have queued for longer than its budget",
+					System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(250));
+			slow.get();
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private void deleteDirectory(File directory) {
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+}